@@ -81,6 +81,25 @@ public class SharedMatrix {
         this.vectors = newvectors;
     }
 
+    /**
+     * Loads a matrix whose data is already stored column by column (columns[c] is column c),
+     * so no transpose is needed. The vectors wrap the given arrays without copying them,
+     * so they must only be read, e.g. as the right operand of a multiplication.
+     */
+    public void loadColumnVectors(double[][] columns) {
+        if (columns == null) {
+            throw new IllegalArgumentException("matrix must be non-null");
+        }
+        SharedVector[] newvectors = new SharedVector[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c] == null || columns[c].length != columns[0].length) {
+                throw new IllegalArgumentException("All columns must be non-null and have the same length");
+            }
+            newvectors[c] = new SharedVector(columns[c], VectorOrientation.COLUMN_MAJOR);
+        }
+        this.vectors = newvectors;
+    }
+
     public double[][] readRowMajor() {
         SharedVector[] currentVectors = this.vectors; // snapshot of current vectors
         double[][] result = new double[currentVectors.length][];
@@ -89,9 +89,32 @@ public class SharedVector {
         if (this.orientation != VectorOrientation.ROW_MAJOR || other.getOrientation() != VectorOrientation.COLUMN_MAJOR) {
             throw new IllegalArgumentException("First vector must be a row vector and second vector must be a column vector to use the dot method");
         }
+        // Concurrent callers hold the read lock of 'other', so its data is read without locking per element
+        double[] otherVector = other.vector;
         double result = 0;
-        for (int i = 0 ; i < this.length() ; i++) {
-            result += this.vector[i] * other.get(i);
+        for (int i = 0 ; i < this.vector.length ; i++) {
+            result += this.vector[i] * otherVector[i];
+        }
+        return result;
+    }
+
+    /**
+     * Computes the dot product of this row vector and a column vector over the index range [from, to).
+     */
+    public double dot(SharedVector other, int from, int to) {
+        if (this.length() != other.length()) {
+            throw new IllegalArgumentException("Vectors must be of the same length to use the dot method");
+        }
+        if (this.orientation != VectorOrientation.ROW_MAJOR || other.getOrientation() != VectorOrientation.COLUMN_MAJOR) {
+            throw new IllegalArgumentException("First vector must be a row vector and second vector must be a column vector to use the dot method");
+        }
+        if (from < 0 || to > this.length() || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds");
+        }
+        double[] otherVector = other.vector;
+        double result = 0;
+        for (int i = from ; i < to ; i++) {
+            result += this.vector[i] * otherVector[i];
         }
         return result;
     }
@@ -1,16 +1,46 @@
 package parser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import memory.VectorOrientation;
+
 public class ComputationNode {
 
     private ComputationNodeType nodeType;
     private List<ComputationNode> children = null;
     private double[][] matrix = null; // only used for MATRIX nodes
+    private VectorOrientation layout = VectorOrientation.ROW_MAJOR; // storage order of matrix
+    private MatrixSource source = null; // where matrix is loaded back from after offload()
+    private boolean[] negatedOperands = null; // only used for ADD nodes, null means no operand is negated
+    private ComputationNode fusedExpression = null; // only used for FUSED nodes
+    private int exponent = 0; // only used for POWER nodes
 
     public ComputationNode(String operatorStr, List<ComputationNode> children) throws IllegalArgumentException {
         this.nodeType = mapOperator(operatorStr);
         this.children = children;
+        if (nodeType == ComputationNodeType.POWER) {
+            throw new IllegalArgumentException("Power operator requires an exponent");
+        }
+    }
+
+    /**
+     * Creates a node from an operator string that takes an exponent, i.e. the power operator "^".
+     */
+    public ComputationNode(String operatorStr, List<ComputationNode> children, int exponent) throws IllegalArgumentException {
+        this.nodeType = mapOperator(operatorStr);
+        if (nodeType != ComputationNodeType.POWER) {
+            throw new IllegalArgumentException("Operator " + operatorStr + " does not take an exponent");
+        }
+        if (children.size() != 1) {
+            throw new IllegalArgumentException("Power operator expects exactly one operand");
+        }
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Exponent must be non-negative");
+        }
+        this.children = children;
+        this.exponent = exponent;
     }
 
     private ComputationNodeType mapOperator(String operatorStr) throws IllegalArgumentException {
@@ -23,6 +53,10 @@ public class ComputationNode {
                 return ComputationNodeType.NEGATE;
             case "T":
                 return ComputationNodeType.TRANSPOSE;
+            case "^":
+                return ComputationNodeType.POWER;
+            case "\\":
+                return ComputationNodeType.SOLVE;
             default:
                 throw new IllegalArgumentException("Unknown operator: " + operatorStr);
         }
@@ -33,11 +67,57 @@ public class ComputationNode {
         this.children = children;
     }
 
+    /**
+     * Creates an ADD-style node whose operands are summed with a sign:
+     * operand i is subtracted instead of added when negatedOperands[i] is true.
+     */
+    public ComputationNode(ComputationNodeType nodeType, List<ComputationNode> children, boolean[] negatedOperands) {
+        this(nodeType, children);
+        if (negatedOperands != null && negatedOperands.length != children.size()) {
+            throw new IllegalArgumentException("Expected one sign per operand");
+        }
+        this.negatedOperands = negatedOperands;
+    }
+
+    /**
+     * Creates a FUSED node that evaluates an element-wise expression in a single kernel.
+     * The operands are the nodes at the leaves of the expression; the expression nodes themselves
+     * are never resolved, only the operands are.
+     */
+    public ComputationNode(ComputationNode fusedExpression, List<ComputationNode> operands) {
+        this.nodeType = ComputationNodeType.FUSED;
+        this.children = operands;
+        this.fusedExpression = fusedExpression;
+    }
+
+    /**
+     * Creates a POWER node that multiplies base by itself exponent times; A^0 is the identity.
+     */
+    public ComputationNode(ComputationNode base, int exponent) {
+        this("^", new ArrayList<>(List.of(base)), exponent);
+    }
+
     public ComputationNode(double[][] matrix) {
         this.nodeType = ComputationNodeType.MATRIX;
         this.matrix = matrix;
     }
 
+    /**
+     * Creates a MATRIX leaf whose row-major matrix is only loaded from source when it is first accessed.
+     */
+    public ComputationNode(MatrixSource source) {
+        this(source, VectorOrientation.ROW_MAJOR);
+    }
+
+    /**
+     * Creates a MATRIX leaf loaded from source on first access, which supplies it in the given layout.
+     */
+    public ComputationNode(MatrixSource source, VectorOrientation layout) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.source = source;
+        this.layout = layout;
+    }
+
     public ComputationNodeType getNodeType() {
         return nodeType;
     }
@@ -46,6 +126,95 @@ public class ComputationNode {
         return children;
     }
 
+    public boolean isOperandNegated(int index) {
+        return negatedOperands != null && negatedOperands[index];
+    }
+
+    public ComputationNode getFusedExpression() {
+        return fusedExpression;
+    }
+
+    public int getExponent() {
+        return exponent;
+    }
+
+    /**
+     * Replaces the child at the given index, used by passes that rewrite subtrees in place.
+     */
+    public void replaceChild(int index, ComputationNode child) {
+        children = new ArrayList<>(children);
+        children.set(index, child);
+    }
+
+    /**
+     * Infers the shape of the matrix this node evaluates to, without computing it.
+     * Returns {rows, columns}.
+     */
+    public int[] getShape() {
+        switch (nodeType) {
+            case MATRIX: {
+                int[] shape = matrix == null && source != null
+                        ? new int[] { source.rows(), source.cols() }
+                        : new int[] { matrix.length, matrix.length == 0 ? 0 : matrix[0].length };
+                return layout == VectorOrientation.ROW_MAJOR ? shape : new int[] { shape[1], shape[0] };
+            }
+            case NEGATE:
+                return children.get(0).getShape();
+            case FUSED:
+                return fusedExpression.getShape();
+            case TRANSPOSE: {
+                int[] shape = children.get(0).getShape();
+                return new int[] { shape[1], shape[0] };
+            }
+            case POWER: {
+                int[] shape = children.get(0).getShape();
+                if (shape[0] != shape[1]) {
+                    throw new IllegalArgumentException("Matrix power requires a square matrix");
+                }
+                return shape;
+            }
+            case SOLVE: {
+                if (children.size() != 2) {
+                    throw new IllegalArgumentException("Solve expects a matrix and a right-hand side");
+                }
+                int[] shape = children.get(0).getShape();
+                int[] rhs = children.get(1).getShape();
+                if (shape[0] != shape[1]) {
+                    throw new IllegalArgumentException("Solve requires a square matrix");
+                }
+                if (shape[0] != rhs[0]) {
+                    throw new IllegalArgumentException("Matrix dimension mismatch: the right-hand side must have one row per equation.");
+                }
+                return rhs;
+            }
+            case MULTIPLY: {
+                int[] shape = children.get(0).getShape();
+                for (int i = 1; i < children.size(); i++) {
+                    int[] next = children.get(i).getShape();
+                    if (shape[1] != next[0]) {
+                        throw new IllegalArgumentException("Matrix dimension mismatch: Inner dimensions must agree.");
+                    }
+                    shape = new int[] { shape[0], next[1] };
+                }
+                return shape;
+            }
+            default: {
+                // Element-wise operators: all operands share one shape
+                int[] shape = children.get(0).getShape();
+                for (int i = 1; i < children.size(); i++) {
+                    int[] next = children.get(i).getShape();
+                    if (shape[0] != next[0]) {
+                        throw new IllegalArgumentException("Matrix row count mismatch");
+                    }
+                    if (shape[1] != next[1]) {
+                        throw new IllegalArgumentException("Matrix column count mismatch");
+                    }
+                }
+                return shape;
+            }
+        }
+    }
+
     /**
      * Recursively finds the first resolvable node in the tree.
      * A resolvable node is defined as a node that is not of type MATRIX,
@@ -74,8 +243,15 @@ public class ComputationNode {
      */
     public void associativeNesting() {
         if (children != null && children.size() > 2) {
-            ComputationNode lastChild = children.remove(children.size() - 1);
-            ComputationNode newNode = new ComputationNode(nodeType, children);
+            int last = children.size() - 1;
+            boolean[] nestedSigns = null;
+            if (negatedOperands != null) {
+                // The nested node keeps the signs of its operands, the last operand keeps its own
+                nestedSigns = Arrays.copyOf(negatedOperands, last);
+                negatedOperands = new boolean[] { false, negatedOperands[last] };
+            }
+            ComputationNode lastChild = children.remove(last);
+            ComputationNode newNode = new ComputationNode(nodeType, children, nestedSigns);
             children = List.of(newNode, lastChild);
             newNode.associativeNesting();
         }
@@ -85,17 +261,99 @@ public class ComputationNode {
      * Resolves this node by setting its type to MATRIX and storing the computed matrix.
      */
     public void resolve(double[][] matrix) {
+        resolve(matrix, VectorOrientation.ROW_MAJOR);
+    }
+
+    /**
+     * Resolves this node with a matrix stored in the given layout.
+     * With COLUMN_MAJOR, storage[j] holds column j of the matrix, i.e. storage is the row-major transpose.
+     */
+    public void resolve(double[][] storage, VectorOrientation layout) {
         this.nodeType = ComputationNodeType.MATRIX;
         this.children = null;
-        this.matrix = matrix;
+        this.negatedOperands = null;
+        this.fusedExpression = null;
+        this.exponent = 0;
+        this.matrix = storage;
+        this.layout = layout;
+        this.source = null;
+    }
+
+    /**
+     * Drops the in-memory matrix of a resolved node; it is loaded back from source on the next access.
+     * The source must supply the matrix in this node's storage layout.
+     */
+    public void offload(MatrixSource source) {
+        if (nodeType != ComputationNodeType.MATRIX) {
+            throw new IllegalStateException("Only a resolved node can be offloaded.");
+        }
+        this.source = source;
+        this.matrix = null;
+    }
+
+    /**
+     * Drops the matrix of a resolved node that will not be read again, along with its source.
+     * Any later access to the matrix throws.
+     */
+    public void discard() {
+        if (nodeType != ComputationNodeType.MATRIX) {
+            throw new IllegalStateException("Only a resolved node can be discarded.");
+        }
+        this.source = null;
+        this.matrix = null;
+    }
+
+    /**
+     * Returns false while the matrix is offloaded and not loaded back yet.
+     */
+    public boolean isResident() {
+        return matrix != null;
+    }
+
+    public MatrixSource getSource() {
+        return source;
     }
 
+    /**
+     * Returns the matrix in row-major order, converting a column-major matrix once on first access.
+     */
     public double[][] getMatrix() {
+        getStorage();
+        if (layout == VectorOrientation.COLUMN_MAJOR) {
+            matrix = transpose(matrix);
+            layout = VectorOrientation.ROW_MAJOR;
+            source = null; // supplies the other layout
+        }
+        return matrix;
+    }
+
+    /**
+     * Returns the matrix as stored, in the order given by getLayout(), loading it back if it was offloaded.
+     */
+    public double[][] getStorage() {
+        if (matrix == null && source != null) {
+            matrix = source.load();
+        }
         if (matrix == null) {
             throw new IllegalStateException("This node does not contain a matrix.");
         }
         return matrix;
     }
 
+    public VectorOrientation getLayout() {
+        return layout;
+    }
+
+    private static double[][] transpose(double[][] storage) {
+        int rows = storage.length == 0 ? 0 : storage[0].length;
+        double[][] result = new double[rows][storage.length];
+        for (int j = 0; j < storage.length; j++) {
+            for (int i = 0; i < rows; i++) {
+                result[i][j] = storage[j][i];
+            }
+        }
+        return result;
+    }
+
 
 }
\ No newline at end of file
@@ -3,11 +3,18 @@ package parser;
 /**
  * Computation nodes hold either an operation to be applied, or a matrix (2D array).
  * Matrices are always leaf nodes, while operation nodes have children.
+ * ADD nodes may subtract some of their operands, see ComputationNode#isOperandNegated.
+ * POWER nodes have a single operand and an exponent, see ComputationNode#getExponent.
+ * SOLVE(A, B) is the solution X of A X = B, i.e. A^-1 B computed without forming the inverse.
+ * FUSED has no operator string; the engine creates it for element-wise subtrees evaluated in one kernel.
  */
 public enum ComputationNodeType {
     ADD,
     MULTIPLY,
     NEGATE,
     TRANSPOSE,
+    POWER,
+    SOLVE,
+    FUSED,
     MATRIX,
 }
\ No newline at end of file
@@ -0,0 +1,220 @@
+package parser;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+
+/**
+ * A matrix described by a generator instead of its elements: an identity, a constant (zeros included)
+ * or a seeded uniform random matrix in [0, 1).
+ * Nothing is allocated until the matrix is loaded, and the optimizer can recognize identity and zero
+ * leaves without loading them. Large matrices are generated in bands of rows on several threads (see ParallelLoad).
+ * A random matrix holds the values a single SplittableRandom(seed) draws in row-major order, whatever the
+ * number of threads; each row starts its own generator at the position of its first element.
+ * A block of a generated matrix is generated on its own, from the offset of its first element (see block).
+ * Two generators are equal when they produce the same matrix.
+ */
+public final class GeneratedMatrix implements MatrixSource {
+
+    public enum Kind {
+        IDENTITY,
+        CONSTANT,
+        RANDOM,
+    }
+
+    static final long BAND_ELEMENTS = 1L << 18;
+    // Seed increment of SplittableRandom: the generator of element k of a stream starts at seed + k * GOLDEN_GAMMA
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final Kind kind;
+    private final int rows;
+    private final int cols;
+    private final double value; // only used for CONSTANT
+    private final long seed; // only used for RANDOM
+    private final int rowOffset; // position of this block in the matrix it was cut from
+    private final int colOffset;
+    private final int stride; // only used for RANDOM, columns of the matrix the block was cut from
+    private final int threads;
+
+    private GeneratedMatrix(Kind kind, int rows, int cols, double value, long seed, int threads) {
+        this(kind, rows, cols, value, seed, 0, 0, cols, threads);
+    }
+
+    private GeneratedMatrix(Kind kind, int rows, int cols, double value, long seed,
+            int rowOffset, int colOffset, int stride, int threads) {
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("Generated matrix must hold at least one element, shape is " + rows + "x" + cols);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.kind = kind;
+        this.rows = rows;
+        this.cols = cols;
+        this.value = value;
+        this.seed = seed;
+        this.rowOffset = rowOffset;
+        this.colOffset = colOffset;
+        this.stride = stride;
+        this.threads = threads;
+    }
+
+    public static GeneratedMatrix identity(int n, int threads) {
+        return new GeneratedMatrix(Kind.IDENTITY, n, n, 0, 0, threads);
+    }
+
+    public static GeneratedMatrix zeros(int rows, int cols) {
+        return constant(rows, cols, 0, 1);
+    }
+
+    public static GeneratedMatrix constant(int rows, int cols, double value, int threads) {
+        return new GeneratedMatrix(Kind.CONSTANT, rows, cols, value, 0, threads);
+    }
+
+    public static GeneratedMatrix random(int rows, int cols, long seed, int threads) {
+        return new GeneratedMatrix(Kind.RANDOM, rows, cols, 0, seed, threads);
+    }
+
+    /**
+     * Returns the generator of rows [rowStart, rowEnd) and columns [colStart, colEnd) of this matrix.
+     * A block of an identity is an identity, a zero matrix or a shifted diagonal, and a block of a random
+     * matrix draws the same values as the matrix it was cut from.
+     */
+    public GeneratedMatrix block(int rowStart, int rowEnd, int colStart, int colEnd) {
+        if (rowStart < 0 || rowEnd > rows || rowStart >= rowEnd || colStart < 0 || colEnd > cols || colStart >= colEnd) {
+            throw new IllegalArgumentException("Block [" + rowStart + ", " + rowEnd + ") x [" + colStart + ", " + colEnd
+                    + ") out of bounds for a " + rows + "x" + cols + " matrix");
+        }
+        int blockRows = rowEnd - rowStart;
+        int blockCols = colEnd - colStart;
+        switch (kind) {
+            case IDENTITY: {
+                // Row i of the block holds its one in column i + shift, if any
+                int shift = rowOffset + rowStart - colOffset - colStart;
+                if (Math.max(0, -shift) >= Math.min(blockRows, blockCols - shift)) {
+                    return constant(blockRows, blockCols, 0, threads);
+                }
+                return shift == 0 ? new GeneratedMatrix(kind, blockRows, blockCols, 0, 0, threads)
+                        : new GeneratedMatrix(kind, blockRows, blockCols, 0, 0, shift, 0, blockCols, threads);
+            }
+            case CONSTANT:
+                return constant(blockRows, blockCols, value, threads);
+            default:
+                return new GeneratedMatrix(kind, blockRows, blockCols, value, seed,
+                        rowOffset + rowStart, colOffset + colStart, stride, threads);
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isIdentity() {
+        return kind == Kind.IDENTITY && rowOffset == colOffset && rows == cols;
+    }
+
+    public boolean isZero() {
+        return kind == Kind.CONSTANT && value == 0;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int cols() {
+        return cols;
+    }
+
+    @Override
+    public double[][] load() {
+        return load(0, rows);
+    }
+
+    /**
+     * Generates rows [from, to) only.
+     */
+    @Override
+    public double[][] load(int from, int to) {
+        int count = to - from;
+        double[][] matrix = new double[count][];
+        int bands = (int) Math.min(Math.min(threads, count), ((long) count * cols + BAND_ELEMENTS - 1) / BAND_ELEMENTS);
+        if (bands <= 1) {
+            fill(matrix, from, from, to);
+            return matrix;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        int bandRows = (count + bands - 1) / bands;
+        for (int first = from; first < to; first += bandRows) {
+            final int start = first;
+            final int end = Math.min(to, first + bandRows);
+            // Each task writes the rows of its own band
+            tasks.add(() -> fill(matrix, from, start, end));
+        }
+        ParallelLoad.run(tasks, threads);
+        return matrix;
+    }
+
+    /**
+     * Generates rows [from, to) into matrix, row i going to matrix[i - first].
+     */
+    private void fill(double[][] matrix, int first, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double[] row = new double[cols];
+            switch (kind) {
+                case IDENTITY: {
+                    int j = i + rowOffset - colOffset;
+                    if (j >= 0 && j < cols) {
+                        row[j] = 1;
+                    }
+                    break;
+                }
+                case CONSTANT:
+                    if (value != 0) {
+                        Arrays.fill(row, value);
+                    }
+                    break;
+                case RANDOM: {
+                    SplittableRandom random = new SplittableRandom(
+                            seed + GOLDEN_GAMMA * ((long) (i + rowOffset) * stride + colOffset));
+                    for (int j = 0; j < cols; j++) {
+                        row[j] = random.nextDouble();
+                    }
+                    break;
+                }
+            }
+            matrix[i - first] = row;
+        }
+    }
+
+    /**
+     * Describes the matrix by its generator parameters.
+     */
+    @Override
+    public boolean describe(MessageDigest digest) {
+        digest.update((byte) 'G');
+        digest.update(ByteBuffer.allocate(28).putInt(kind.ordinal()).putInt(rows).putInt(cols)
+                .putDouble(value).putLong(seed).flip());
+        if (rowOffset != 0 || colOffset != 0 || stride != cols) {
+            digest.update(ByteBuffer.allocate(12).putInt(rowOffset).putInt(colOffset).putInt(stride).flip());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GeneratedMatrix other && kind == other.kind && rows == other.rows && cols == other.cols
+                && Double.compare(value, other.value) == 0 && seed == other.seed
+                && rowOffset == other.rowOffset && colOffset == other.colOffset && stride == other.stride;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, rows, cols, value, seed, rowOffset, colOffset, stride);
+    }
+}
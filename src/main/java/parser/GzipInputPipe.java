@@ -0,0 +1,98 @@
+package parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gzip file through a pipe filled by a separate thread, so that inflating the input
+ * overlaps with parsing it. A failure of the inflating thread is thrown by the read that reaches it.
+ */
+final class GzipInputPipe extends InputStream {
+
+    static final int PIPE_BYTES = 1 << 20;
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private final PipedInputStream pipe = new PipedInputStream(PIPE_BYTES);
+    private volatile IOException failure = null;
+
+    /**
+     * Returns true if the file starts with the gzip magic number, false if it does not or cannot be read.
+     */
+    static boolean isGzip(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } catch (IOException e) {
+            // Reported when the file is opened for parsing
+            return false;
+        }
+    }
+
+    GzipInputPipe(Path file) throws IOException {
+        PipedOutputStream sink = new PipedOutputStream(pipe);
+        // Opened here, so that a missing file or a bad header fails before any thread is started
+        InputStream compressed = new GZIPInputStream(Files.newInputStream(file), CHUNK_BYTES);
+        Thread inflater = new Thread(() -> {
+            try (InputStream in = compressed) {
+                byte[] chunk = new byte[CHUNK_BYTES];
+                for (int count; (count = in.read(chunk)) > 0; ) {
+                    sink.write(chunk, 0, count);
+                    // Wakes the reader up now rather than after its next poll
+                    sink.flush();
+                }
+            } catch (IOException e) {
+                // Set before the pipe is closed, so that the reader never takes a failure for the end of the input
+                failure = e;
+            } finally {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    // The reader has gone away
+                }
+            }
+        }, "gunzip " + file.getFileName());
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = pipe.read();
+        if (b < 0) {
+            checkFailure();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = pipe.read(buffer, offset, length);
+        if (count < 0) {
+            checkFailure();
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return pipe.available();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closing before the end stops the inflating thread at its next write.
+     */
+    @Override
+    public void close() throws IOException {
+        pipe.close();
+    }
+}
@@ -1,68 +1,505 @@
 package parser;
 
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Parses the input JSON with Jackson's streaming JsonParser: matrix elements are read straight into
+ * primitive rows, without building a JsonNode per element first.
+ * Errors are the same as when the whole input was read as a JsonNode tree first: malformed parts are
+ * read back as trees to quote them, a syntax error anywhere in the input wins over any other error,
+ * and an operator node is checked before its operands.
+ * Gzip-compressed input is recognized by its magic number and inflated on a separate thread while it is parsed.
+ * A leaf can also reference a matrix in the binary matrix format, {"file": "w.bin"}, with a path relative to the
+ * directory of the input file (see MatrixFile).
+ * The root object may name matrices in a "definitions" object, e.g. {"definitions": {"W": [[1, 2]]}, ...};
+ * each definition is parsed once, and every {"ref": "W"} leaf of the expression is that same node.
+ * Generator leaves describe a matrix instead of listing it: {"identity": n}, {"zeros": [r, c]},
+ * {"constant": [r, c], "value": x} and {"random": [r, c], "seed": s}, see GeneratedMatrix.
+ */
 public class InputParser {
 
     private final ObjectMapper mapper = new ObjectMapper();
+    private File inputFile;
+    private boolean compressed; // gzip input, which has no byte offsets to map or to read back from
+    private final Map<String, ComputationNode> definitions = new HashMap<>();
+    private final Map<ComputationNode, String> forwardReferences = new IdentityHashMap<>(); // read before their definition
+    private String definingName = null; // set while a definition is parsed
+    private boolean lazyLeaves = false;
+    private int parseThreads = 1;
+
+    /**
+     * With lazy leaves, the input file is memory-mapped and scanned for its structure only: each matrix literal
+     * becomes a leaf that is parsed from its byte range when the engine first loads it (see MatrixLiteral).
+     * Errors in the rows of a literal are still reported by parse(). The file must not change until every
+     * leaf has been loaded. Gzip input is always parsed eagerly.
+     */
+    public void setLazyLeaves(boolean lazyLeaves) {
+        this.lazyLeaves = lazyLeaves;
+    }
+
+    /**
+     * With more than one thread, every matrix literal is scanned first and then parsed in chunks of about
+     * MatrixLiteral.CHUNK_BYTES, cut at row boundaries and parsed concurrently straight into the rows of the matrix.
+     * Lazy leaves are parsed the same way when they are loaded. Gzip input is parsed on a single thread.
+     * Generated leaves are generated with as many threads.
+     */
+    public void setParseThreads(int parseThreads) {
+        if (parseThreads < 1) {
+            throw new IllegalArgumentException("parseThreads must be positive");
+        }
+        this.parseThreads = parseThreads;
+    }
 
     public ComputationNode parse(String inputPath) throws ParseException {
-        try {
-            File inputFile = new File(inputPath);
-            JsonNode rootJsonNode = mapper.readTree(inputFile);
-            ComputationNode root = parseJsonNode(rootJsonNode);
-            return root;
+        inputFile = new File(inputPath);
+        compressed = GzipInputPipe.isGzip(inputFile.toPath());
+        try (JsonParser jsonParser = compressed
+                ? mapper.getFactory().createParser(new GzipInputPipe(inputFile.toPath()))
+                : lazyLeaves
+                ? mapper.getFactory().createParser(new MappedInputStream(inputFile.toPath(), 0, inputFile.length()))
+                : mapper.getFactory().createParser(inputFile)) {
+            if (jsonParser.nextToken() == null) {
+                throw new ParseException("Invalid node structure: ", 0);
+            }
+            definitions.clear();
+            forwardReferences.clear();
+            try {
+                ComputationNode root = parseNode(jsonParser);
+                return bindReferences(root);
+            } catch (ParseException | IllegalArgumentException e) {
+                // The rest of the input must still be valid JSON, otherwise that is the error to report
+                while (!jsonParser.getParsingContext().inRoot()) {
+                    jsonParser.nextToken();
+                }
+                throw e;
+            }
         } catch (IOException e) {
             throw new ParseException("Failed to read the input JSON file: " + e.getMessage(), 0);
         }
     }
 
-    private ComputationNode parseJsonNode(JsonNode jsonNode) throws ParseException {
-        if (jsonNode.has("operator") && jsonNode.has("operands")) {
-            String operatorStr = jsonNode.get("operator").asText();
-            ArrayNode operandJsonNodes = (ArrayNode) jsonNode.get("operands");
-            List<ComputationNode> operands = new ArrayList<>();
-            for (int i = 0; i < operandJsonNodes.size(); i++) {
-                operands.add(parseJsonNode(operandJsonNodes.get(i)));
+    /**
+     * Parses the value at the current token, leaving the parser on its last token.
+     */
+    private ComputationNode parseNode(JsonParser jsonParser) throws IOException, ParseException {
+        if (jsonParser.currentToken() == JsonToken.START_OBJECT) {
+            return parseOperator(jsonParser);
+        }
+        else if (jsonParser.currentToken() == JsonToken.START_ARRAY) {
+            return parseMatrix(jsonParser);
+        }
+        else { throw new ParseException("Invalid node structure: " + jsonParser.readValueAsTree().toString(), 0); }
+    }
+
+    private ComputationNode parseOperator(JsonParser jsonParser) throws IOException, ParseException {
+        long start = jsonParser.currentTokenLocation().getByteOffset();
+        JsonStreamContext objectContext = jsonParser.getParsingContext();
+        Exception operandError = null; // reported only if this node itself is well formed
+        String operatorStr = null;
+        List<ComputationNode> operands = null;
+        boolean operandsIsArray = false;
+        JsonNode exponentJsonNode = null;
+        boolean hasFile = false;
+        String fileStr = null;
+        boolean hasRef = false;
+        String refStr = null;
+        boolean misplacedDefinitions = false;
+        String generator = null;
+        JsonNode generatorJsonNode = null;
+        int generators = 0;
+        JsonNode seedJsonNode = null;
+        JsonNode valueJsonNode = null;
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jsonParser.currentName();
+            JsonToken value = jsonParser.nextToken();
+            switch (field) {
+                case "operator":
+                    operatorStr = value == JsonToken.VALUE_STRING ? jsonParser.getText() : jsonParser.<JsonNode>readValueAsTree().asText();
+                    break;
+                case "operands":
+                    operands = new ArrayList<>();
+                    operandsIsArray = value == JsonToken.START_ARRAY;
+                    if (operandsIsArray) {
+                        try {
+                            while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                                operands.add(parseNode(jsonParser));
+                            }
+                        } catch (ParseException | IllegalArgumentException e) {
+                            operandError = e;
+                            // Skip to the end of the operands array
+                            while (jsonParser.currentToken() != JsonToken.END_ARRAY
+                                    || jsonParser.getParsingContext() != objectContext) {
+                                jsonParser.nextToken();
+                            }
+                        }
+                    } else {
+                        jsonParser.skipChildren();
+                    }
+                    break;
+                case "exponent":
+                    exponentJsonNode = jsonParser.readValueAsTree();
+                    break;
+                case "file":
+                    hasFile = true;
+                    fileStr = value == JsonToken.VALUE_STRING ? jsonParser.getText() : null;
+                    jsonParser.skipChildren();
+                    break;
+                case "ref":
+                    hasRef = true;
+                    refStr = value == JsonToken.VALUE_STRING ? jsonParser.getText() : null;
+                    jsonParser.skipChildren();
+                    break;
+                case "definitions":
+                    // Only the root object defines names
+                    if (value == JsonToken.START_OBJECT && objectContext.getParent().inRoot()) {
+                        parseDefinitions(jsonParser);
+                    } else {
+                        misplacedDefinitions = true;
+                        jsonParser.skipChildren();
+                    }
+                    break;
+                case "identity":
+                case "zeros":
+                case "constant":
+                case "random":
+                    generator = field;
+                    generatorJsonNode = jsonParser.readValueAsTree();
+                    generators++;
+                    break;
+                case "seed":
+                    seedJsonNode = jsonParser.readValueAsTree();
+                    break;
+                case "value":
+                    valueJsonNode = jsonParser.readValueAsTree();
+                    break;
+                default:
+                    jsonParser.skipChildren();
+                    break;
+            }
+        }
+        int leafFields = (hasFile ? 1 : 0) + (hasRef ? 1 : 0) + generators;
+        boolean leafOnly = leafFields == 1 && operatorStr == null && operands == null && exponentJsonNode == null
+                && !misplacedDefinitions;
+        if (leafOnly && hasFile && fileStr != null && seedJsonNode == null && valueJsonNode == null) {
+            return parseFile(fileStr);
+        }
+        if (leafOnly && hasRef && refStr != null && seedJsonNode == null && valueJsonNode == null) {
+            return reference(refStr);
+        }
+        // A seed only goes with a random matrix, and a constant matrix needs its value
+        if (leafOnly && generator != null && (seedJsonNode == null || generator.equals("random"))
+                && (valueJsonNode != null) == generator.equals("constant")) {
+            return parseGenerator(generator, generatorJsonNode, seedJsonNode, valueJsonNode);
+        }
+        if (leafFields > 0 || seedJsonNode != null || valueJsonNode != null || misplacedDefinitions
+                || operatorStr == null || operands == null || !operandsIsArray) {
+            throw new ParseException("Invalid node structure: " + readBack(start, jsonParser.currentLocation()), 0);
+        }
+        if (operandError instanceof ParseException parseError) {
+            throw parseError;
+        }
+        if (operandError != null) {
+            throw (IllegalArgumentException) operandError;
+        }
+        if (exponentJsonNode != null) {
+            if (!exponentJsonNode.canConvertToInt() || !exponentJsonNode.isIntegralNumber()
+                    || exponentJsonNode.asInt() < 0) {
+                throw new ParseException("Invalid exponent: " + exponentJsonNode.toString(), 0);
             }
-            return new ComputationNode(operatorStr, operands);
+            return new ComputationNode(operatorStr, operands, exponentJsonNode.asInt());
+        }
+        return new ComputationNode(operatorStr, operands);
+    }
+
+    /**
+     * Creates a generator leaf. Generated matrices are only materialized when the engine loads them,
+     * whether leaves are lazy or not, so that the optimizer can eliminate identities and zeros first.
+     */
+    private ComputationNode parseGenerator(String generator, JsonNode sizeJsonNode, JsonNode seedJsonNode,
+            JsonNode valueJsonNode) throws ParseException {
+        int rows;
+        int cols;
+        if (generator.equals("identity")) {
+            rows = positiveInt(sizeJsonNode);
+            cols = rows;
+        } else {
+            rows = sizeJsonNode.isArray() && sizeJsonNode.size() == 2 ? positiveInt(sizeJsonNode.get(0)) : 0;
+            cols = rows > 0 ? positiveInt(sizeJsonNode.get(1)) : 0;
+        }
+        if (rows == 0 || cols == 0) {
+            throw new ParseException("Invalid " + generator + " size: " + sizeJsonNode.toString(), 0);
         }
-        else if (jsonNode.isArray()) {
-            if (jsonNode.size() == 0) {
-                throw new ParseException("Empty array cannot be parsed as DataNode.", 0);
+        switch (generator) {
+            case "identity":
+                return new ComputationNode(GeneratedMatrix.identity(rows, parseThreads));
+            case "zeros":
+                return new ComputationNode(GeneratedMatrix.zeros(rows, cols));
+            case "constant":
+                if (!valueJsonNode.isNumber()) {
+                    throw new ParseException("Invalid constant value: " + valueJsonNode.toString(), 0);
+                }
+                return new ComputationNode(GeneratedMatrix.constant(rows, cols, valueJsonNode.asDouble(), parseThreads));
+            default:
+                if (seedJsonNode != null && (!seedJsonNode.isIntegralNumber() || !seedJsonNode.canConvertToLong())) {
+                    throw new ParseException("Invalid seed: " + seedJsonNode.toString(), 0);
+                }
+                long seed = seedJsonNode == null ? 0 : seedJsonNode.asLong();
+                return new ComputationNode(GeneratedMatrix.random(rows, cols, seed, parseThreads));
+        }
+    }
+
+    /**
+     * Returns the value of a positive int node, or 0 if it is not one.
+     */
+    private static int positiveInt(JsonNode node) {
+        return node.isIntegralNumber() && node.canConvertToInt() && node.asInt() > 0 ? node.asInt() : 0;
+    }
+
+    /**
+     * Parses the definitions object at the current token, each name bound to a matrix leaf.
+     */
+    private void parseDefinitions(JsonParser jsonParser) throws IOException, ParseException {
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = jsonParser.currentName();
+            jsonParser.nextToken();
+            if (definitions.containsKey(name)) {
+                throw new ParseException("Duplicate definition: " + name, 0);
             }
-            // Check if it's a vector (1D array)
-            if (jsonNode.get(0).isNumber()) {
-                throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", 0);
+            ComputationNode definition;
+            definingName = name;
+            try {
+                definition = parseNode(jsonParser);
+            } finally {
+                definingName = null;
             }
-            // Otherwise, it's a matrix (2D array)
-            else {
-                double[][] matrix = new double[jsonNode.size()][];
-                int width = jsonNode.get(0).size();
-                for (int i = 0; i < jsonNode.size(); i++) {
-                    JsonNode rowJsonNode = jsonNode.get(i);
-                    if (rowJsonNode.size() != width) {
-                        throw new ParseException("Inconsistent row sizes in matrix.", 0);
-                    }
-                    if (!rowJsonNode.isArray()) {
-                        throw new ParseException("Invalid matrix row: " + rowJsonNode.toString(), 0);
-                    }
-                    matrix[i] = new double[rowJsonNode.size()];
-                    for (int j = 0; j < rowJsonNode.size(); j++) {
-                        matrix[i][j] = rowJsonNode.get(j).asDouble();
+            if (definition.getNodeType() != ComputationNodeType.MATRIX) {
+                throw new ParseException("Definition " + name + " is not a matrix", 0);
+            }
+            definitions.put(name, definition);
+        }
+    }
+
+    /**
+     * Returns the node defined under name, or a placeholder bound by bindReferences() if the definitions
+     * come later in the input.
+     */
+    private ComputationNode reference(String name) throws ParseException {
+        if (definingName != null) {
+            throw new ParseException("Definition " + definingName + " cannot reference " + name, 0);
+        }
+        ComputationNode definition = definitions.get(name);
+        if (definition != null) {
+            return definition;
+        }
+        ComputationNode placeholder = new ComputationNode(new double[0][]);
+        forwardReferences.put(placeholder, name);
+        return placeholder;
+    }
+
+    /**
+     * Replaces the placeholders of forward references by their definitions, once the whole input has been read.
+     */
+    private ComputationNode bindReferences(ComputationNode node) throws ParseException {
+        if (forwardReferences.isEmpty()) {
+            return node;
+        }
+        String name = forwardReferences.get(node);
+        if (name != null) {
+            ComputationNode definition = definitions.get(name);
+            if (definition == null) {
+                throw new ParseException("Undefined reference: " + name, 0);
+            }
+            return definition;
+        }
+        if (node.getNodeType() != ComputationNodeType.MATRIX) {
+            for (int i = 0; i < node.getChildren().size(); i++) {
+                ComputationNode child = node.getChildren().get(i);
+                ComputationNode bound = bindReferences(child);
+                if (bound != child) {
+                    node.replaceChild(i, bound);
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Opens a matrix file leaf; it is memory-mapped when it is first loaded, or right away without lazy leaves.
+     */
+    private ComputationNode parseFile(String fileStr) throws ParseException {
+        try {
+            Path path = inputFile.toPath().toAbsolutePath().getParent().resolve(fileStr);
+            MatrixFile matrixFile = MatrixFile.open(path);
+            ComputationNode leaf = new ComputationNode(matrixFile, matrixFile.getLayout());
+            if (!lazyLeaves) {
+                leaf.getStorage();
+            }
+            return leaf;
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            throw new ParseException("Invalid matrix file " + fileStr + ": " + e.getMessage(), 0);
+        }
+    }
+
+    private ComputationNode parseMatrix(JsonParser jsonParser) throws IOException, ParseException {
+        long start = jsonParser.currentTokenLocation().getByteOffset();
+        JsonToken first = jsonParser.nextToken();
+        if (first == JsonToken.END_ARRAY) {
+            throw new ParseException("Empty array cannot be parsed as DataNode.", 0);
+        }
+        // Check if it's a vector (1D array)
+        if (first.isNumeric()) {
+            throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", 0);
+        }
+        // Otherwise, it's a matrix (2D array); the first row gives the width
+        boolean scan = (lazyLeaves || parseThreads > 1) && !compressed;
+        List<double[]> rows = new ArrayList<>();
+        MatrixLiteral.Chunks chunks = new MatrixLiteral.Chunks();
+        int rowCount = 0;
+        int width = -1;
+        for (JsonToken token = first; token != JsonToken.END_ARRAY; token = jsonParser.nextToken()) {
+            if (token != JsonToken.START_ARRAY) {
+                // Rare: read the row back as a tree to report it
+                JsonNode rowJsonNode = jsonParser.readValueAsTree();
+                if (width < 0) {
+                    width = rowJsonNode.size();
+                }
+                if (rowJsonNode.size() != width) {
+                    throw new ParseException("Inconsistent row sizes in matrix.", 0);
+                }
+                throw new ParseException("Invalid matrix row: " + rowJsonNode.toString(), 0);
+            }
+            int length;
+            if (scan) {
+                chunks.startRow(rowCount, jsonParser.currentTokenLocation().getByteOffset());
+                length = countRow(jsonParser);
+                chunks.endRow(jsonParser.currentLocation().getByteOffset());
+            } else {
+                double[] row = parseRow(jsonParser, width);
+                rows.add(row);
+                length = row.length;
+            }
+            if (width < 0) {
+                width = length;
+            }
+            if (length != width) {
+                throw new ParseException("Inconsistent row sizes in matrix.", 0);
+            }
+            rowCount++;
+        }
+        if (scan) {
+            long end = jsonParser.currentLocation().getByteOffset();
+            MatrixLiteral literal = new MatrixLiteral(inputFile.toPath(), start, end, rowCount, width, chunks, parseThreads);
+            return lazyLeaves ? new ComputationNode(literal) : new ComputationNode(literal.load());
+        }
+        return new ComputationNode(rows.toArray(new double[0][]));
+    }
+
+    /**
+     * Counts the elements of the row array at the current token without converting them.
+     */
+    private static int countRow(JsonParser jsonParser) throws IOException {
+        int count = 0;
+        while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+            jsonParser.skipChildren();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the rows of an array at the current token into matrix[from, to), with rows of known length
+     * that have already been checked by a scan.
+     */
+    static void readRows(JsonParser jsonParser, double[][] matrix, int from, int to, int cols) throws IOException {
+        for (int i = from; i < to; i++) {
+            jsonParser.nextToken();
+            double[] row = new double[cols];
+            for (int j = 0; j < cols; j++) {
+                row[j] = elementValue(jsonParser, jsonParser.nextToken());
+            }
+            jsonParser.nextToken();
+            matrix[i] = row;
+        }
+    }
+
+    /**
+     * Reads the elements of the row array at the current token. With a known width the row is filled in place,
+     * and a row of the wrong length is returned short or one element too long.
+     */
+    private double[] parseRow(JsonParser jsonParser, int width) throws IOException {
+        double[] row = new double[width < 0 ? 16 : width];
+        int count = 0;
+        JsonToken token;
+        while ((token = jsonParser.nextToken()) != JsonToken.END_ARRAY) {
+            if (count == row.length) {
+                if (width >= 0) {
+                    jsonParser.skipChildren();
+                    while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                        jsonParser.skipChildren();
                     }
+                    return Arrays.copyOf(row, width + 1);
                 }
-                return new ComputationNode(matrix);
+                row = Arrays.copyOf(row, row.length * 2);
+            }
+            row[count++] = elementValue(jsonParser, token);
+        }
+        return count == row.length ? row : Arrays.copyOf(row, count);
+    }
+
+    /**
+     * Converts a matrix element like JsonNode.asDouble(): numbers as they are, numeric strings parsed,
+     * true as 1, and anything else as 0.
+     */
+    private static double elementValue(JsonParser jsonParser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return jsonParser.getDoubleValue();
+            case VALUE_STRING:
+                return NumberInput.parseAsDouble(jsonParser.getText(), 0.0, false);
+            case VALUE_TRUE:
+                return 1.0;
+            default:
+                jsonParser.skipChildren();
+                return 0.0;
+        }
+    }
+
+    /**
+     * Returns the JSON text between start and end, normalized the way JsonNode.toString() prints it.
+     */
+    private String readBack(long start, JsonLocation end) throws IOException {
+        byte[] bytes = new byte[(int) (end.getByteOffset() - start)];
+        if (compressed) {
+            // Offsets count inflated bytes, so the input is inflated again up to the node
+            try (InputStream in = new GZIPInputStream(new FileInputStream(inputFile))) {
+                in.skipNBytes(start);
+                in.readNBytes(bytes, 0, bytes.length);
+            }
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(inputFile, "r")) {
+                file.seek(start);
+                file.readFully(bytes);
             }
         }
-        else { throw new ParseException("Invalid node structure: " + jsonNode.toString(), 0); }
+        return mapper.readTree(bytes).toString();
     }
 
-}
\ No newline at end of file
+}
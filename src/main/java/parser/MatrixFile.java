@@ -0,0 +1,227 @@
+package parser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import memory.VectorOrientation;
+
+/**
+ * A matrix in the binary matrix format, memory-mapped when its matrix is loaded.
+ * A file starts with a HEADER_BYTES header, all little-endian:
+ *   bytes 0-3   magic "LAEM"
+ *   byte  4     format version, 1
+ *   byte  5     element type, 1 for float64 or 2 for float32
+ *   byte  6     layout, 0 for row-major or 1 for column-major
+ *   byte  7     reserved, 0
+ *   bytes 8-15  rows and columns of the matrix, as two int32
+ *   bytes 16-31 reserved, 0
+ * followed by the elements, one stored vector (a row, or a column) after the other.
+ * Files are written as float64, which keeps every value exactly; float32 files are widened when loaded.
+ */
+public final class MatrixFile implements MatrixSource {
+
+    static final int HEADER_BYTES = 32;
+    static final byte VERSION = 1;
+    static final byte FLOAT64 = 1;
+    static final byte FLOAT32 = 2;
+    private static final byte[] MAGIC = { 'L', 'A', 'E', 'M' };
+    private static final long MAX_MAPPING_BYTES = 1L << 30;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final Path file;
+    private final int elementBytes;
+    private final VectorOrientation layout;
+    private final int vectors; // stored vectors
+    private final int length; // elements per stored vector
+
+    private MatrixFile(Path file, int elementBytes, VectorOrientation layout, int vectors, int length) {
+        this.file = file;
+        this.elementBytes = elementBytes;
+        this.layout = layout;
+        this.vectors = vectors;
+        this.length = length;
+    }
+
+    /**
+     * Reads and checks the header of a matrix file.
+     * Throws IllegalArgumentException if the file is not a well-formed matrix file.
+     */
+    public static MatrixFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Short reads are retried until the header is complete or the file ends
+            }
+            if (header.hasRemaining()) {
+                throw new IllegalArgumentException("File is too short for a matrix header");
+            }
+            header.flip();
+            for (byte b : MAGIC) {
+                if (header.get() != b) {
+                    throw new IllegalArgumentException("Not a matrix file");
+                }
+            }
+            if (header.get() != VERSION) {
+                throw new IllegalArgumentException("Unsupported matrix file version");
+            }
+            byte type = header.get();
+            if (type != FLOAT64 && type != FLOAT32) {
+                throw new IllegalArgumentException("Unsupported element type " + type);
+            }
+            byte layoutCode = header.get();
+            if (layoutCode != 0 && layoutCode != 1) {
+                throw new IllegalArgumentException("Unsupported layout " + layoutCode);
+            }
+            header.get();
+            int rows = header.getInt();
+            int cols = header.getInt();
+            if (rows < 1 || cols < 1) {
+                throw new IllegalArgumentException("Matrix file must hold at least one element, shape is " + rows + "x" + cols);
+            }
+            int elementBytes = type == FLOAT64 ? 8 : 4;
+            if (channel.size() != HEADER_BYTES + (long) elementBytes * rows * cols) {
+                throw new IllegalArgumentException("File size does not match the shape " + rows + "x" + cols);
+            }
+            VectorOrientation layout = layoutCode == 0 ? VectorOrientation.ROW_MAJOR : VectorOrientation.COLUMN_MAJOR;
+            Path realFile = file.toRealPath();
+            return layout == VectorOrientation.ROW_MAJOR
+                    ? new MatrixFile(realFile, elementBytes, layout, rows, cols)
+                    : new MatrixFile(realFile, elementBytes, layout, cols, rows);
+        }
+    }
+
+    /**
+     * Writes a matrix stored in the given layout (storage[j] is column j when it is COLUMN_MAJOR) as float64.
+     */
+    public static void write(double[][] storage, VectorOrientation layout, Path file) throws IOException {
+        if (storage.length == 0 || storage[0].length == 0) {
+            throw new IllegalArgumentException("Matrix file must hold at least one element");
+        }
+        int vectors = storage.length;
+        int length = storage[0].length;
+        boolean rowMajor = layout == VectorOrientation.ROW_MAJOR;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC).put(VERSION).put(FLOAT64).put((byte) (rowMajor ? 0 : 1)).put((byte) 0);
+            buffer.putInt(rowMajor ? vectors : length).putInt(rowMajor ? length : vectors);
+            buffer.put(new byte[HEADER_BYTES - buffer.position()]);
+            for (double[] vector : storage) {
+                if (vector.length != length) {
+                    throw new IllegalArgumentException("Stored vectors must all have the same length");
+                }
+                for (double value : vector) {
+                    if (!buffer.hasRemaining()) {
+                        drain(buffer, channel);
+                    }
+                    buffer.putDouble(value);
+                }
+            }
+            drain(buffer, channel);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public VectorOrientation getLayout() {
+        return layout;
+    }
+
+    @Override
+    public int rows() {
+        return vectors;
+    }
+
+    @Override
+    public int cols() {
+        return length;
+    }
+
+    @Override
+    public double[][] load() {
+        return load(0, vectors);
+    }
+
+    /**
+     * Maps and reads the stored vectors [from, to) only.
+     */
+    @Override
+    public double[][] load(int from, int to) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            double[][] storage = new double[to - from][length];
+            // A single mapping is limited to 2 GB, so large matrices are mapped in bands of stored vectors
+            int band = (int) Math.max(1, MAX_MAPPING_BYTES / ((long) elementBytes * length));
+            for (int v = from; v < to; v += band) {
+                int count = Math.min(band, to - v);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + (long) elementBytes * v * length, (long) elementBytes * count * length);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                if (elementBytes == 8) {
+                    DoubleBuffer values = mapped.asDoubleBuffer();
+                    for (int i = v; i < v + count; i++) {
+                        values.get(storage[i - from]);
+                    }
+                } else {
+                    FloatBuffer values = mapped.asFloatBuffer();
+                    for (int i = v; i < v + count; i++) {
+                        double[] vector = storage[i - from];
+                        for (int j = 0; j < length; j++) {
+                            vector[j] = values.get();
+                        }
+                    }
+                }
+            }
+            return storage;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load matrix file " + file, e);
+        }
+    }
+
+    /**
+     * Describes the file by its path, size and modification time, like a build tool deciding whether
+     * an input changed, so that the file is not read.
+     */
+    @Override
+    public boolean describe(MessageDigest digest) {
+        try {
+            digest.update((byte) 'F');
+            digest.update(file.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(ByteBuffer.allocate(16).putLong(Files.size(file))
+                    .putLong(Files.getLastModifiedTime(file).toMillis()).flip());
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the attributes of matrix file " + file, e);
+        }
+    }
+
+    /**
+     * Two references to the same file are equal, which lets them be merged without loading the file.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MatrixFile other && file.equals(other.file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
+}
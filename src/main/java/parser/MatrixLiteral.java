@@ -0,0 +1,191 @@
+package parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A matrix literal of the input file, parsed from its byte range when its matrix is first loaded.
+ * The structural scan of InputParser has already checked its rows, so loading it cannot fail on its content.
+ * Two literals are equal when their text is, which lets identical leaves be merged without parsing them.
+ * The rows are cut into chunks of about CHUNK_BYTES at row boundaries; with more than one thread, chunks are
+ * parsed concurrently (see ParallelLoad), each into its own rows of the matrix.
+ */
+final class MatrixLiteral implements MatrixSource {
+
+    static final long CHUNK_BYTES = 1L << 20;
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final Path file;
+    private final long start; // byte offset of the opening bracket
+    private final long end; // byte offset just past the closing bracket
+    private final int rows;
+    private final int cols;
+    private final Chunks chunks;
+    private final int threads;
+    private int hash = 0;
+    private boolean hashed = false;
+
+    /**
+     * Byte ranges of consecutive runs of rows, recorded row by row while the literal is scanned.
+     */
+    static final class Chunks {
+        private final List<Long> starts = new ArrayList<>(); // offset of the first row of each chunk
+        private final List<Long> ends = new ArrayList<>(); // offset just past the last row of each chunk
+        private final List<Integer> firstRows = new ArrayList<>();
+
+        void startRow(int row, long offset) {
+            if (starts.isEmpty() || offset - starts.get(starts.size() - 1) >= CHUNK_BYTES) {
+                starts.add(offset);
+                ends.add(offset);
+                firstRows.add(row);
+            }
+        }
+
+        void endRow(long offset) {
+            ends.set(ends.size() - 1, offset);
+        }
+
+        int size() {
+            return starts.size();
+        }
+    }
+
+    MatrixLiteral(Path file, long start, long end, int rows, int cols, Chunks chunks, int threads) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.rows = rows;
+        this.cols = cols;
+        this.chunks = chunks;
+        this.threads = threads;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int cols() {
+        return cols;
+    }
+
+    @Override
+    public double[][] load() {
+        return load(0, rows);
+    }
+
+    /**
+     * Parses the chunks holding rows [from, to) only.
+     */
+    @Override
+    public double[][] load(int from, int to) {
+        double[][] matrix = new double[rows][];
+        List<Runnable> tasks = new ArrayList<>();
+        for (int c = 0; c < chunks.size(); c++) {
+            int chunkEnd = c + 1 < chunks.size() ? chunks.firstRows.get(c + 1) : rows;
+            if (chunks.firstRows.get(c) < to && chunkEnd > from) {
+                final int chunk = c;
+                // Each task writes the rows of its own chunk
+                tasks.add(() -> readChunk(matrix, chunk));
+            }
+        }
+        ParallelLoad.run(tasks, threads);
+        return from == 0 && to == rows ? matrix : Arrays.copyOfRange(matrix, from, to);
+    }
+
+    /**
+     * Parses the rows of a chunk, read as the JSON array of its rows.
+     */
+    private void readChunk(double[][] matrix, int chunk) {
+        int from = chunks.firstRows.get(chunk);
+        int to = chunk + 1 < chunks.size() ? chunks.firstRows.get(chunk + 1) : rows;
+        try (InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[] {'['}),
+                new SequenceInputStream(new MappedInputStream(file, chunks.starts.get(chunk), chunks.ends.get(chunk)),
+                        new ByteArrayInputStream(new byte[] {']'})));
+                JsonParser jsonParser = FACTORY.createParser(in)) {
+            jsonParser.nextToken();
+            InputParser.readRows(jsonParser, matrix, from, to, cols);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load a matrix literal of " + file, e);
+        }
+    }
+
+    /**
+     * Describes the literal by its text, which is read but not parsed.
+     */
+    @Override
+    public boolean describe(MessageDigest digest) {
+        digest.update((byte) 'L');
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new MappedInputStream(file, start, end)) {
+            for (int count; (count = in.read(buffer, 0, buffer.length)) > 0; ) {
+                digest.update(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read a matrix literal of " + file, e);
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        if (!hashed) {
+            int h = 1;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new MappedInputStream(file, start, end)) {
+                for (int count; (count = in.read(buffer, 0, buffer.length)) > 0; ) {
+                    for (int i = 0; i < count; i++) {
+                        h = 31 * h + buffer[i];
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read a matrix literal of " + file, e);
+            }
+            hash = h;
+            hashed = true;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MatrixLiteral other) || end - start != other.end - other.start
+                || rows != other.rows || cols != other.cols || hashCode() != other.hashCode()) {
+            return false;
+        }
+        try (InputStream in = new MappedInputStream(file, start, end);
+                InputStream otherIn = new MappedInputStream(other.file, other.start, other.end)) {
+            byte[] buffer = new byte[1 << 16];
+            byte[] otherBuffer = new byte[1 << 16];
+            for (int count; (count = in.readNBytes(buffer, 0, buffer.length)) > 0; ) {
+                if (otherIn.readNBytes(otherBuffer, 0, count) != count) {
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] != otherBuffer[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read a matrix literal of " + file, e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package parser;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Supplies the matrix of a resolved node that is not kept in memory, e.g. because it was written to disk,
+ * or because it is an input matrix that has not been parsed yet.
+ * The matrix is supplied in the storage layout of the node it belongs to.
+ */
+public interface MatrixSource {
+
+    /**
+     * Number of stored vectors (rows of a row-major matrix).
+     */
+    int rows();
+
+    /**
+     * Length of each stored vector.
+     */
+    int cols();
+
+    double[][] load();
+
+    /**
+     * Loads the stored vectors [from, to) only, e.g. for a block of the matrix.
+     * The default loads the whole matrix and keeps the range; sources that can read a range on its own override it.
+     */
+    default double[][] load(int from, int to) {
+        return Arrays.copyOfRange(load(), from, to);
+    }
+
+    /**
+     * Feeds digest with a description that identifies the matrix across runs, without loading it,
+     * and returns true; a source that cannot identify its matrix that way returns false.
+     */
+    default boolean describe(MessageDigest digest) {
+        return false;
+    }
+}
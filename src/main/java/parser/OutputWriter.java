@@ -1,13 +1,28 @@
 package parser;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import memory.VectorOrientation;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 public class OutputWriter {
 
     private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    // Shortest round-trip doubles through Jackson's Schubfach writer instead of Double.toString
+    private static final JsonFactory compactFactory = JsonFactory.builder()
+            .enable(StreamWriteFeature.USE_FAST_DOUBLE_WRITER).build();
+    private static final int OUTPUT_BUFFER_BYTES = 1 << 20;
 
     public static class ResultMatrix {
         public double[][] result;
@@ -21,14 +36,98 @@ public class OutputWriter {
 
     public OutputWriter() {}
 
+    /**
+     * A path ending in .gz is gzip-compressed, by blocks compressed in parallel.
+     */
     public static void write(double[][] matrix, String filePath) throws IOException {
-        File file = new File(filePath);
-        mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ResultMatrix(matrix));
+        mapper.writerWithDefaultPrettyPrinter().writeValue(open(filePath), new ResultMatrix(matrix));
     }
 
     public static void write(String error, String filePath) throws IOException {
-        File file = new File(filePath);
-        mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ErrorMessage(error));
+        mapper.writerWithDefaultPrettyPrinter().writeValue(open(filePath), new ErrorMessage(error));
+    }
+
+    /**
+     * Writes the same document as write(), without whitespace and row by row through a JsonGenerator.
+     * A path ending in .gz is gzip-compressed.
+     */
+    public static void writeCompact(double[][] matrix, String filePath) throws IOException {
+        try (RowStream rows = openCompact(filePath)) {
+            for (double[] row : matrix) {
+                rows.writeRow(row);
+            }
+        }
+    }
+
+    public static void writeCompact(String error, String filePath) throws IOException {
+        try (JsonGenerator generator = compactFactory.createGenerator(open(filePath))) {
+            generator.writeStartObject();
+            generator.writeStringField("error", error);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Starts a compact result document whose rows are written one at a time; closing the stream completes it.
+     */
+    public static RowStream openCompact(String filePath) throws IOException {
+        return new RowStream(compactFactory.createGenerator(open(filePath)));
+    }
+
+    /**
+     * Buffered output to a file channel, or a multi-member gzip stream compressed on every core
+     * if the path ends in .gz (see ParallelGzipOutputStream).
+     */
+    private static OutputStream open(String filePath) throws IOException {
+        OutputStream out = Channels.newOutputStream(FileChannel.open(Path.of(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        if (filePath.endsWith(".gz")) {
+            return new ParallelGzipOutputStream(out, Runtime.getRuntime().availableProcessors());
+        }
+        return new BufferedOutputStream(out, OUTPUT_BUFFER_BYTES);
+    }
+
+    /**
+     * The rows of a compact result document, written as they are given.
+     */
+    public static class RowStream implements RowSink, Closeable {
+        private final JsonGenerator generator;
+
+        private RowStream(JsonGenerator generator) throws IOException {
+            this.generator = generator;
+            generator.writeStartObject();
+            generator.writeFieldName("result");
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void writeRow(double[] row) throws IOException {
+            generator.writeArray(row, 0, row.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                generator.writeEndArray();
+                generator.writeEndObject();
+            } finally {
+                generator.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the matrix in the binary matrix format (see MatrixFile) instead of JSON.
+     */
+    public static void writeBinary(double[][] matrix, String filePath) throws IOException {
+        MatrixFile.write(matrix, VectorOrientation.ROW_MAJOR, Path.of(filePath));
+    }
+
+    /**
+     * Writes a resolved node in the binary matrix format in the layout it is stored in, without converting it.
+     */
+    public static void writeBinary(ComputationNode result, String filePath) throws IOException {
+        MatrixFile.write(result.getStorage(), result.getLayout(), Path.of(filePath));
     }
 
 }
@@ -0,0 +1,123 @@
+package parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a multi-member gzip stream: the data is cut into blocks of BLOCK_BYTES, and each block is compressed
+ * into a gzip member of its own on a pool of threads while the next blocks are filled.
+ * Members are written in order; gzip readers (GZIPInputStream, gunzip) read concatenated members as one stream.
+ * At most two blocks per thread are pending, so a slow output holds the writer back instead of filling memory.
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_BYTES = 1 << 20;
+
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_BYTES];
+    private int count = 0;
+    private int members = 0;
+    private boolean closed = false;
+
+    ParallelGzipOutputStream(OutputStream out, int threads) {
+        this.out = out;
+        this.maxPending = 2 * threads;
+        this.compressors = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "gzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            submitBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == block.length) {
+                submitBlock();
+            }
+            int n = Math.min(length, block.length - count);
+            System.arraycopy(buffer, offset, block, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = count;
+        pending.add(compressors.submit(() -> compress(data, length)));
+        members++;
+        block = new byte[BLOCK_BYTES];
+        count = 0;
+        while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+            writeMember(pending.poll());
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+            gzip.write(data, 0, length);
+        }
+        return member.toByteArray();
+    }
+
+    private void writeMember(Future<byte[]> member) throws IOException {
+        try {
+            out.write(member.get());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a block", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+    }
+
+    /**
+     * Blocks are only compressed once they are full or the stream is closed, so flushing writes nothing.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // An empty stream still needs one member to be valid gzip
+            if (count > 0 || members == 0) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeMember(pending.poll());
+            }
+        } finally {
+            compressors.shutdownNow();
+            out.close();
+        }
+    }
+}
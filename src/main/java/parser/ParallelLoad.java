@@ -0,0 +1,71 @@
+package parser;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import scheduling.TiredThread;
+
+/**
+ * Runs the independent parts of a matrix load, such as the chunks of a literal or the bands of a generated
+ * matrix, and rethrows the first failure on the calling thread.
+ * The calling thread takes parts itself and up to threads - 1 threads of a pool shared by every load join it,
+ * so loads running at the same time never add more threads than the machine has processors.
+ * A load started on an engine worker runs on that worker alone: the engine already spreads the loads of a step
+ * over its workers, and fanning each of them out again would only oversubscribe the processors.
+ */
+final class ParallelLoad {
+
+    private static final int POOL_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(POOL_THREADS, task -> {
+        Thread thread = new Thread(task, "matrix-load");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ParallelLoad() {
+    }
+
+    static void run(List<Runnable> parts, int threads) {
+        int helpers = Math.min(Math.min(threads, parts.size()) - 1, POOL_THREADS);
+        if (helpers <= 0 || Thread.currentThread() instanceof TiredThread) {
+            for (Runnable part : parts) {
+                part.run();
+            }
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(parts.size());
+        // Helpers that start after every part was taken find nothing left and return at once
+        Runnable drain = () -> {
+            for (int i; (i = next.getAndIncrement()) < parts.size(); ) {
+                try {
+                    if (failure.get() == null) {
+                        parts.get(i).run();
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int h = 0; h < helpers; h++) {
+            POOL.execute(drain);
+        }
+        drain.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading a matrix");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
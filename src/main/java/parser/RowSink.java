@@ -0,0 +1,11 @@
+package parser;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a result matrix one at a time, top to bottom.
+ */
+public interface RowSink {
+
+    void writeRow(double[] row) throws IOException;
+}
@@ -2,6 +2,7 @@ package scheduling;
 
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TiredExecutor {
 
@@ -61,10 +62,21 @@ public class TiredExecutor {
 
     worker.newTask(wrapperTask);
 }
+    /**
+     * Runs the tasks and waits until all of them finish, then rethrows the first exception a task threw.
+     */
     public  void submitAll(Iterable<Runnable> tasks) { // לחזור לזה
         // TODO: submit tasks one by one and wait until all finish
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
         for (Runnable task : tasks) {
-            this.submit(task);
+            // Workers would only log the exception, so it is kept for the caller
+            this.submit(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
         }
 
         synchronized (this) {
@@ -77,6 +89,27 @@ public class TiredExecutor {
                 }
             }
         }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Average time in nanoseconds from handing a task to a worker until the worker starts it,
+     * over all tasks run so far. Returns defaultNanos if no task has run yet.
+     */
+    public long getAverageTaskOverhead(long defaultNanos) {
+        long total = 0;
+        long count = 0;
+        for (TiredThread worker : workers) {
+            total += worker.getDispatchOverhead();
+            count += worker.getTaskCount();
+        }
+        return count == 0 ? defaultNanos : total / count;
     }
 
     public void shutdown() throws InterruptedException {
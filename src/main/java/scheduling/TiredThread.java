@@ -22,6 +22,9 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
     private final AtomicLong timeUsed = new AtomicLong(0); // Total time spent executing tasks
     private final AtomicLong timeIdle = new AtomicLong(0); // Total time spent idle
     private final AtomicLong idleStartTime = new AtomicLong(0); // Timestamp when the worker became idle
+    private final AtomicLong handoffTime = new AtomicLong(0); // Timestamp when the pending task was handed off
+    private final AtomicLong dispatchOverhead = new AtomicLong(0); // Total time between handoff and task start
+    private final AtomicLong tasksRun = new AtomicLong(0); // Number of tasks taken from the handoff queue
 
     public TiredThread(int id, double fatigueFactor) {
         this.id = id;
@@ -50,6 +53,18 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         return timeIdle.get();
     }
 
+    public long getTaskCount() {
+        return tasksRun.get();
+    }
+
+    /**
+     * Total time in nanoseconds between handing tasks off to this worker and the worker starting them.
+     * Divided by getTaskCount(), this is the per-task scheduling overhead.
+     */
+    public long getDispatchOverhead() {
+        return dispatchOverhead.get();
+    }
+
     /**
      * Assign a task to this worker.
      * This method is non-blocking: if the worker is not ready to accept a task,
@@ -57,6 +72,7 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
      */
     public void newTask(Runnable task) {
        // TODO
+       handoffTime.set(System.nanoTime());
        if (!handoff.offer(task)) { // Offer returns false if the queue is full
             throw new IllegalStateException("Worker " + id + " is not ready to accept a new task");
         }
@@ -92,6 +108,8 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
                 alive.set(false);
                 break;
             }
+            dispatchOverhead.addAndGet(currentTime - handoffTime.get());
+            tasksRun.incrementAndGet();
 
             // Execute the task
             busy.set(true);
@@ -0,0 +1,202 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Solves A X = B through a blocked, right-looking LU factorization with partial pivoting, P A = L U,
+ * without ever forming the inverse of A: about 2n^3/3 flops for the factorization and 2n^2 per column of B.
+ * The factorization proceeds one panel of BLOCK_SIZE columns at a time. Each step factors the panel and
+ * the matching block row of U on the calling thread, then returns one task per tile of the trailing
+ * update A22 -= L21 * U12, which holds almost all of the work. The caller runs the tasks of a step
+ * (in parallel or not) before asking for the next one, and finally runs the solve tasks, one per band of columns of B.
+ * Every element accumulates its updates in the same order whatever the tiling, so the result does not
+ * depend on the number of workers.
+ */
+public class BlockedLU {
+
+    static final int BLOCK_SIZE = 64;
+
+    private final int n;
+    private final int blockSize;
+    private final double[][] lu; // L below the diagonal (unit diagonal implied), U on and above it
+    private final int[] permutation; // row i of P A is row permutation[i] of A
+    private int factored = 0; // columns factored so far
+
+    public BlockedLU(double[][] matrix) {
+        this(matrix, BLOCK_SIZE);
+    }
+
+    /**
+     * Copies matrix, which is not modified.
+     */
+    public BlockedLU(double[][] matrix, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.n = matrix.length;
+        this.blockSize = blockSize;
+        this.lu = new double[n][];
+        this.permutation = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (matrix[i].length != n) {
+                throw new IllegalArgumentException("LU factorization requires a square matrix");
+            }
+            lu[i] = matrix[i].clone();
+            permutation[i] = i;
+        }
+    }
+
+    public boolean hasNextStep() {
+        return factored < n;
+    }
+
+    /**
+     * Factors the next panel and returns the tasks of its trailing update.
+     * Throws IllegalArgumentException if the matrix turns out to be singular.
+     */
+    public List<Runnable> nextStep(int workers, long taskOverheadNanos) {
+        if (!hasNextStep()) {
+            throw new IllegalStateException("The matrix is already factored");
+        }
+        int panelStart = factored;
+        int panelEnd = Math.min(n, panelStart + blockSize);
+        factorPanel(panelStart, panelEnd);
+        solveBlockRow(panelStart, panelEnd);
+        factored = panelEnd;
+
+        List<Runnable> tasks = new ArrayList<>();
+        int trailing = n - panelEnd;
+        if (trailing == 0) {
+            return tasks;
+        }
+        MultiplyTiling tiling = MultiplyTiling.plan(trailing, trailing, panelEnd - panelStart, workers, taskOverheadNanos);
+        for (int r = panelEnd; r < n; r += tiling.getTileRows()) {
+            for (int c = panelEnd; c < n; c += tiling.getTileCols()) {
+                final int rowStart = r;
+                final int rowEnd = Math.min(n, r + tiling.getTileRows());
+                final int colStart = c;
+                final int colEnd = Math.min(n, c + tiling.getTileCols());
+                // Each task writes a distinct tile of A22 and only reads L21 and U12
+                tasks.add(() -> {
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        double[] row = lu[i];
+                        for (int k = panelStart; k < panelEnd; k++) {
+                            double l = row[k];
+                            double[] u = lu[k];
+                            for (int j = colStart; j < colEnd; j++) {
+                                row[j] -= l * u[j];
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Unblocked LU of columns [panelStart, panelEnd) below the factored part, swapping whole rows to pivot.
+     */
+    private void factorPanel(int panelStart, int panelEnd) {
+        for (int k = panelStart; k < panelEnd; k++) {
+            int pivot = k;
+            for (int i = k + 1; i < n; i++) {
+                if (Math.abs(lu[i][k]) > Math.abs(lu[pivot][k])) {
+                    pivot = i;
+                }
+            }
+            if (lu[pivot][k] == 0) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            if (pivot != k) {
+                double[] row = lu[k];
+                lu[k] = lu[pivot];
+                lu[pivot] = row;
+                int index = permutation[k];
+                permutation[k] = permutation[pivot];
+                permutation[pivot] = index;
+            }
+            double[] u = lu[k];
+            for (int i = k + 1; i < n; i++) {
+                double[] row = lu[i];
+                double l = row[k] / u[k];
+                row[k] = l;
+                for (int j = k + 1; j < panelEnd; j++) {
+                    row[j] -= l * u[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * U12 = L11^-1 A12: forward substitution of the panel's unit lower triangle into the columns right of it.
+     */
+    private void solveBlockRow(int panelStart, int panelEnd) {
+        for (int i = panelStart + 1; i < panelEnd; i++) {
+            double[] row = lu[i];
+            for (int k = panelStart; k < i; k++) {
+                double l = row[k];
+                double[] u = lu[k];
+                for (int j = panelEnd; j < n; j++) {
+                    row[j] -= l * u[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns tasks that write the solution of A X = B into x (n x m, allocated by the caller),
+     * one task per band of columns. The factorization must be complete.
+     */
+    public List<Runnable> createSolveTasks(double[][] b, double[][] x, int workers, long taskOverheadNanos) {
+        if (hasNextStep()) {
+            throw new IllegalStateException("The matrix is not factored yet");
+        }
+        if (b.length != n) {
+            throw new IllegalArgumentException("Matrix dimension mismatch: the right-hand side must have one row per equation.");
+        }
+        int m = n == 0 ? 0 : b[0].length;
+        for (int i = 0; i < n; i++) {
+            x[i] = b[permutation[i]].clone();
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        if (m == 0) {
+            return tasks;
+        }
+        // Bands are sized like the tiles of a one-row product with the same work per column, about n^2 multiply-adds
+        int bandCols = MultiplyTiling.plan(1, m, (int) Math.min(Integer.MAX_VALUE, (long) n * n), workers,
+                taskOverheadNanos).getTileCols();
+        for (int c = 0; c < m; c += bandCols) {
+            final int colStart = c;
+            final int colEnd = Math.min(m, c + bandCols);
+            tasks.add(() -> {
+                // L y = P b, then U x = y, in place; each task owns its columns of every row of x
+                for (int i = 1; i < n; i++) {
+                    double[] row = x[i];
+                    double[] l = lu[i];
+                    for (int k = 0; k < i; k++) {
+                        double[] y = x[k];
+                        for (int j = colStart; j < colEnd; j++) {
+                            row[j] -= l[k] * y[j];
+                        }
+                    }
+                }
+                for (int i = n - 1; i >= 0; i--) {
+                    double[] row = x[i];
+                    double[] u = lu[i];
+                    for (int k = i + 1; k < n; k++) {
+                        double[] solved = x[k];
+                        for (int j = colStart; j < colEnd; j++) {
+                            row[j] -= u[k] * solved[j];
+                        }
+                    }
+                    for (int j = colStart; j < colEnd; j++) {
+                        row[j] /= u[i];
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+}
@@ -0,0 +1,107 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Merges structurally identical subtrees into a single shared node (hash-consing),
+ * turning the tree into a DAG in which every distinct subexpression is computed once.
+ * Leaves are keyed by the content and layout of their storage, or by their source while not loaded,
+ * operator nodes by their operator, operand signs, exponent and the identity of their (already merged) children.
+ * Children are replaced in place, so the pass must run on a tree the engine owns (e.g. after the optimizer).
+ */
+public class CommonSubexpressionEliminator {
+
+    private int eliminatedCount = 0;
+
+    public ComputationNode eliminate(ComputationNode root) {
+        // The maps hold every node and leaf matrix of the tree, so they only live for one pass
+        return eliminate(root, new HashMap<>(), new IdentityHashMap<>());
+    }
+
+    private ComputationNode eliminate(ComputationNode node, Map<Object, ComputationNode> canonicalNodes,
+            Map<ComputationNode, ComputationNode> visited) {
+        ComputationNode done = visited.get(node);
+        if (done != null) {
+            return done;
+        }
+        if (node.getNodeType() != ComputationNodeType.MATRIX) {
+            for (int i = 0; i < node.getChildren().size(); i++) {
+                ComputationNode child = node.getChildren().get(i);
+                ComputationNode canonicalChild = eliminate(child, canonicalNodes, visited);
+                if (canonicalChild != child) {
+                    node.replaceChild(i, canonicalChild);
+                }
+            }
+        }
+        ComputationNode canonical = canonicalNodes.putIfAbsent(keyOf(node), node);
+        if (canonical == null) {
+            canonical = node;
+        }
+        else {
+            eliminatedCount++;
+        }
+        visited.put(node, canonical);
+        return canonical;
+    }
+
+    /**
+     * Returns the number of subtrees replaced by an identical subtree so far.
+     */
+    public int getEliminatedCount() {
+        return eliminatedCount;
+    }
+
+    private static Object keyOf(ComputationNode node) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            // A leaf that is not loaded yet is keyed by its source, so that merging does not load it
+            // A resident leaf is keyed by its storage as it is, converting it to row-major would drop its source
+            return node.isResident() || node.getSource() == null
+                    ? new LeafKey(node.getStorage(), node.getLayout()) : node.getSource();
+        }
+        if (node.getNodeType() == ComputationNodeType.FUSED) {
+            // A fused expression has no structural key, it is only equal to itself
+            return node;
+        }
+        List<Boolean> signs = new ArrayList<>();
+        for (int i = 0; i < node.getChildren().size(); i++) {
+            signs.add(node.isOperandNegated(i));
+        }
+        // ComputationNode does not override equals, so the children are compared by identity
+        return new OperatorKey(node.getNodeType(), List.copyOf(node.getChildren()), signs, node.getExponent());
+    }
+
+    private record OperatorKey(ComputationNodeType nodeType, List<ComputationNode> children, List<Boolean> signs,
+            int exponent) {}
+
+    private static final class LeafKey {
+        private final double[][] storage;
+        private final VectorOrientation layout;
+        private final int hash;
+
+        LeafKey(double[][] storage, VectorOrientation layout) {
+            this.storage = storage;
+            this.layout = layout;
+            this.hash = 31 * Arrays.deepHashCode(storage) + layout.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LeafKey other && hash == other.hash && layout == other.layout
+                    && Arrays.deepEquals(storage, other.storage);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Replaces every maximal element-wise subtree (ADD, NEGATE and TRANSPOSE nodes) that contains more than one
+ * operator with a single FUSED node, so that the subtree is evaluated by one row kernel (see ElementwiseKernel)
+ * and none of its intermediate matrices is allocated.
+ * Subtrees with a single element-wise operator are left alone, their dedicated kernels are already single-pass.
+ * A node shared by several parents is a fusion boundary: it is computed once and read by every parent's kernel.
+ * Operator nodes are fused in place, so the pass must run on a tree the engine owns (e.g. after the optimizer).
+ */
+public class ElementwiseFusion {
+
+    private final Map<ComputationNode, Integer> parentCounts = new IdentityHashMap<>();
+    private final Map<ComputationNode, ComputationNode> fusedNodes = new IdentityHashMap<>();
+    private int fusedCount = 0;
+
+    public ComputationNode fuse(ComputationNode root) {
+        parentCounts.clear();
+        fusedNodes.clear();
+        countParents(root);
+        ComputationNode fused = fuseNode(root);
+        // The pass outlives the run, it must not keep the nodes of the tree reachable
+        parentCounts.clear();
+        fusedNodes.clear();
+        return fused;
+    }
+
+    /**
+     * Returns the number of FUSED nodes created by this pass so far.
+     */
+    public int getFusedCount() {
+        return fusedCount;
+    }
+
+    private ComputationNode fuseNode(ComputationNode node) {
+        ComputationNode done = fusedNodes.get(node);
+        if (done != null) {
+            return done;
+        }
+        ComputationNode result = node;
+        if (node.getNodeType() != ComputationNodeType.MATRIX) {
+            if (isElementwise(node) && hasInlinableChild(node)) {
+                List<ComputationNode> operands = new ArrayList<>();
+                collectOperands(node, operands);
+                fusedCount++;
+                result = new ComputationNode(node, operands);
+            }
+            else {
+                fuseChildren(node);
+            }
+        }
+        fusedNodes.put(node, result);
+        return result;
+    }
+
+    private void fuseChildren(ComputationNode node) {
+        for (int i = 0; i < node.getChildren().size(); i++) {
+            ComputationNode child = node.getChildren().get(i);
+            ComputationNode fused = fuseNode(child);
+            if (fused != child) {
+                node.replaceChild(i, fused);
+            }
+        }
+    }
+
+    /**
+     * Collects the operands at the leaves of an element-wise region, fusing the subtrees below them.
+     */
+    private void collectOperands(ComputationNode node, List<ComputationNode> operands) {
+        for (int i = 0; i < node.getChildren().size(); i++) {
+            ComputationNode child = node.getChildren().get(i);
+            if (isInlinable(child)) {
+                collectOperands(child, operands);
+            }
+            else {
+                ComputationNode operand = fuseNode(child);
+                if (operand != child) {
+                    node.replaceChild(i, operand);
+                }
+                if (operands.stream().noneMatch(existing -> existing == operand)) {
+                    operands.add(operand);
+                }
+            }
+        }
+    }
+
+    private void countParents(ComputationNode node) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            // Only the first visit of a shared node descends into it
+            if (parentCounts.merge(child, 1, Integer::sum) == 1) {
+                countParents(child);
+            }
+        }
+    }
+
+    private boolean hasInlinableChild(ComputationNode node) {
+        for (ComputationNode child : node.getChildren()) {
+            if (isInlinable(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isInlinable(ComputationNode node) {
+        return isElementwise(node) && parentCounts.getOrDefault(node, 0) <= 1;
+    }
+
+    private static boolean isElementwise(ComputationNode node) {
+        switch (node.getNodeType()) {
+            case ADD:
+                return !node.getChildren().isEmpty();
+            case NEGATE:
+            case TRANSPOSE:
+                return node.getChildren().size() == 1;
+            default:
+                return false;
+        }
+    }
+}
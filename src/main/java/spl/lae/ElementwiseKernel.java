@@ -0,0 +1,242 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * A row kernel for the expression of a FUSED node: an interpreted program of whole-row steps, built once
+ * per node, in which each step is a plain loop over a row:
+ * load an operand row into a buffer, add or subtract an operand row from it, or combine two buffers.
+ * NEGATE is folded into the signs of the steps, and TRANSPOSE into swapped indices of the operand loads,
+ * so no intermediate matrix is ever allocated. A row costs one call per step rather than one call per element,
+ * and the loops over untransposed operands are simple enough for the JIT to vectorize.
+ * Terms are summed in the order of the expression, so the result is the same as evaluating it node by node.
+ */
+public class ElementwiseKernel {
+
+    private static final int LOAD = 0; // buffer = +-operand
+    private static final int ACCUMULATE = 1; // buffer += +-operand
+    private static final int COMBINE = 2; // buffer += +-(the buffer one level deeper)
+    static final int BAND_ROWS = 8; // a cache line of a transposed operand
+
+    /**
+     * One step of the program: level is the buffer it writes, level 0 being the output row.
+     */
+    private record Step(int op, int level, int operand, boolean swapped, boolean negated) {}
+
+    private final Step[] steps;
+    private final int depth; // number of buffers, the output row included
+    private final ThreadLocal<double[][][]> scratch = new ThreadLocal<>(); // scratch bands of the nested sums
+
+    private ElementwiseKernel(List<Step> steps) {
+        this.steps = steps.toArray(new Step[0]);
+        int levels = 1;
+        for (Step step : steps) {
+            levels = Math.max(levels, step.level() + 1);
+        }
+        this.depth = levels;
+    }
+
+    /**
+     * Translates the expression of a FUSED node into a program. Operand i of the node is read from operands[i] at evaluation time.
+     */
+    public static ElementwiseKernel compile(ComputationNode fusedNode) {
+        VectorOrientation[] operandLayouts = new VectorOrientation[fusedNode.getChildren().size()];
+        Arrays.fill(operandLayouts, VectorOrientation.ROW_MAJOR);
+        return compile(fusedNode, operandLayouts, VectorOrientation.ROW_MAJOR);
+    }
+
+    /**
+     * Translates the expression of a FUSED node whose operand i is stored in operandLayouts[i].
+     * With a COLUMN_MAJOR output layout, "row" r of the kernel is column r of the result.
+     * Both are handled like TRANSPOSE, by swapping the indices of the affected operand loads.
+     */
+    public static ElementwiseKernel compile(ComputationNode fusedNode, VectorOrientation[] operandLayouts,
+            VectorOrientation outputLayout) {
+        if (fusedNode.getNodeType() != ComputationNodeType.FUSED) {
+            throw new IllegalArgumentException("Only FUSED nodes can be turned into a kernel");
+        }
+        Map<ComputationNode, Integer> operandIndex = new IdentityHashMap<>();
+        List<ComputationNode> operands = fusedNode.getChildren();
+        for (int i = 0; i < operands.size(); i++) {
+            operandIndex.putIfAbsent(operands.get(i), i);
+        }
+        boolean transposed = outputLayout == VectorOrientation.COLUMN_MAJOR;
+        List<Step> steps = new ArrayList<>();
+        emit(fusedNode.getFusedExpression(), 0, transposed, false, false, operandIndex, operandLayouts, steps);
+        return new ElementwiseKernel(steps);
+    }
+
+    /**
+     * Returns true if the expression of a FUSED node reads the given operand below a TRANSPOSE,
+     * i.e. if a row of the result depends on more than the same row of that operand.
+     */
+    public static boolean readsTransposed(ComputationNode fusedNode, ComputationNode operand) {
+        return readsTransposed(fusedNode.getFusedExpression(), operand, fusedNode.getChildren(), false);
+    }
+
+    private static boolean readsTransposed(ComputationNode node, ComputationNode operand, List<ComputationNode> operands,
+            boolean transposed) {
+        if (node == operand) {
+            return transposed;
+        }
+        if (operands.stream().anyMatch(other -> other == node)) {
+            return false;
+        }
+        boolean below = transposed != (node.getNodeType() == ComputationNodeType.TRANSPOSE);
+        for (ComputationNode child : node.getChildren()) {
+            if (readsTransposed(child, operand, operands, below)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Emits the steps that write (negated ? -node : node) into the buffer at level,
+     * replacing it, or adding to it when accumulate is set.
+     */
+    private static void emit(ComputationNode node, int level, boolean transposed, boolean negated, boolean accumulate,
+            Map<ComputationNode, Integer> operandIndex, VectorOrientation[] operandLayouts, List<Step> steps) {
+        Integer index = operandIndex.get(node);
+        if (index != null) {
+            boolean swapped = transposed != (operandLayouts[index] == VectorOrientation.COLUMN_MAJOR);
+            steps.add(new Step(accumulate ? ACCUMULATE : LOAD, level, index, swapped, negated));
+            return;
+        }
+        List<ComputationNode> children = node.getChildren();
+        switch (node.getNodeType()) {
+            case TRANSPOSE:
+                // T commutes with element-wise operators, so it only swaps the indices of the operands below it
+                emit(children.get(0), level, !transposed, negated, accumulate, operandIndex, operandLayouts, steps);
+                return;
+            case NEGATE:
+                emit(children.get(0), level, transposed, !negated, accumulate, operandIndex, operandLayouts, steps);
+                return;
+            case ADD:
+                if (accumulate) {
+                    // A nested sum is summed on its own first, to keep the rounding of the expression
+                    emit(node, level + 1, transposed, false, false, operandIndex, operandLayouts, steps);
+                    steps.add(new Step(COMBINE, level, -1, false, negated));
+                    return;
+                }
+                // -(a + b) = -a - b exactly, so a sign is pushed into the terms of the sum
+                for (int i = 0; i < children.size(); i++) {
+                    emit(children.get(i), level, transposed, negated != node.isOperandNegated(i), i > 0,
+                            operandIndex, operandLayouts, steps);
+                }
+                return;
+            default:
+                throw new IllegalArgumentException("Not an element-wise operator: " + node.getNodeType());
+        }
+    }
+
+    /**
+     * Evaluates one row of the expression into out.
+     */
+    public void computeRow(double[][][] operands, int row, double[] out) {
+        computeBand(operands, row, new double[][] { out });
+    }
+
+    /**
+     * Evaluates rows [from, to) of the expression into the same rows of result, which must be allocated.
+     * Rows are computed BAND_ROWS at a time, so that a transposed operand is read a cache line at a time.
+     */
+    public void computeRows(double[][][] operands, int from, int to, double[][] result) {
+        for (int start = from; start < to; start += BAND_ROWS) {
+            computeBand(operands, start, Arrays.copyOfRange(result, start, Math.min(to, start + BAND_ROWS)));
+        }
+    }
+
+    /**
+     * Evaluates rows [from, from + out.length) of the expression into out.
+     */
+    private void computeBand(double[][][] operands, int from, double[][] out) {
+        double[][][] buffers = buffers(out);
+        for (Step step : steps) {
+            double[][] targets = buffers[step.level()];
+            boolean assign = step.op() == LOAD;
+            if (step.op() == COMBINE) {
+                double[][] sources = buffers[step.level() + 1];
+                for (int r = 0; r < targets.length; r++) {
+                    accumulate(targets[r], sources[r], step.negated());
+                }
+            } else if (step.swapped()) {
+                accumulateColumns(targets, operands[step.operand()], from, step.negated(), assign);
+            } else {
+                double[][] source = operands[step.operand()];
+                for (int r = 0; r < targets.length; r++) {
+                    if (assign) {
+                        load(targets[r], source[from + r], step.negated());
+                    } else {
+                        accumulate(targets[r], source[from + r], step.negated());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns out followed by this thread's scratch bands for the nested sums, if the expression has any.
+     */
+    private double[][][] buffers(double[][] out) {
+        double[][][] buffers = new double[depth][][];
+        buffers[0] = out;
+        if (depth > 1) {
+            double[][][] rows = scratch.get();
+            int cols = out[0].length;
+            if (rows == null || rows[0][0].length != cols) {
+                rows = new double[depth - 1][BAND_ROWS][cols];
+                scratch.set(rows);
+            }
+            for (int level = 1; level < depth; level++) {
+                buffers[level] = Arrays.copyOf(rows[level - 1], out.length);
+            }
+        }
+        return buffers;
+    }
+
+    private static void load(double[] target, double[] source, boolean negated) {
+        if (negated) {
+            for (int j = 0; j < target.length; j++) {
+                target[j] = -source[j];
+            }
+        } else {
+            System.arraycopy(source, 0, target, 0, target.length);
+        }
+    }
+
+    private static void accumulate(double[] target, double[] source, boolean negated) {
+        if (negated) {
+            for (int j = 0; j < target.length; j++) {
+                target[j] -= source[j];
+            }
+        } else {
+            for (int j = 0; j < target.length; j++) {
+                target[j] += source[j];
+            }
+        }
+    }
+
+    /**
+     * Like load (assign) or accumulate for rows [from, from + targets.length) of the transpose of source,
+     * i.e. columns of source: each source row is read once per band, along the rows of the band.
+     */
+    private static void accumulateColumns(double[][] targets, double[][] source, int from, boolean negated, boolean assign) {
+        int cols = targets[0].length;
+        for (int j = 0; j < cols; j++) {
+            double[] column = source[j];
+            for (int r = 0; r < targets.length; r++) {
+                double value = negated ? -column[from + r] : column[from + r];
+                targets[r][j] = assign ? value : targets[r][j] + value;
+            }
+        }
+    }
+}
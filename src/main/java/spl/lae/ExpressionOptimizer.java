@@ -0,0 +1,337 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+
+/**
+ * Rewrites a computation tree into a cheaper equivalent tree before it is evaluated.
+ * The following identities are applied bottom-up:
+ * T(T(A)) = A and -(-A) = A,
+ * -(A * B) = (-A) * B, negating whichever operand is the smallest,
+ * T(A * B) = T(B) * T(A), when the operand transposes are cheaper than transposing the product,
+ * A + (B + -C) = A + B - C, flattening nested sums into one signed ADD that is evaluated by a single
+ * fused kernel, and -(A + B) = -A - B, flipping the operand signs.
+ * Powers are simplified with A^1 = A, (A^j)^k = A^(j*k) and (-A)^k = A^k or -(A^k) depending on the parity of k.
+ * Generated identity and zero leaves (see GeneratedMatrix) are eliminated without being loaded:
+ * A * I = A, I \ B = B, T(I) = I^k = I, and a zero leaf turns products, transposes, negations and powers
+ * into zero leaves and drops out of sums (ignoring the NaN that 0 * Inf would have produced).
+ * These are only applied to well-shaped operands, so that shape errors are still reported.
+ * The input tree is not modified; rewritten parts are rebuilt from new nodes.
+ */
+public class ExpressionOptimizer {
+
+    private int rewriteCount = 0;
+
+    public ComputationNode optimize(ComputationNode node) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            return node;
+        }
+        List<ComputationNode> children = new ArrayList<>();
+        for (ComputationNode child : node.getChildren()) {
+            children.add(optimize(child));
+        }
+        switch (node.getNodeType()) {
+            case TRANSPOSE:
+                return children.size() == 1 ? transpose(children.get(0)) : rebuild(node.getNodeType(), children);
+            case NEGATE:
+                return children.size() == 1 ? negate(children.get(0)) : rebuild(node.getNodeType(), children);
+            case ADD: {
+                boolean[] negated = new boolean[children.size()];
+                for (int i = 0; i < negated.length; i++) {
+                    negated[i] = node.isOperandNegated(i);
+                }
+                return add(children, negated);
+            }
+            case MULTIPLY:
+                return multiply(children);
+            case POWER:
+                return power(children.get(0), node.getExponent());
+            case SOLVE:
+                return solve(children);
+            default:
+                return rebuild(node.getNodeType(), children);
+        }
+    }
+
+    /**
+     * Returns the number of identities applied by this optimizer so far.
+     */
+    public int getRewriteCount() {
+        return rewriteCount;
+    }
+
+    private ComputationNode transpose(ComputationNode operand) {
+        // T(I) = I and T(0) = 0
+        if (isIdentity(operand)) {
+            rewriteCount++;
+            return operand;
+        }
+        if (isZero(operand)) {
+            int[] shape = operand.getShape();
+            return zeros(new int[] { shape[1], shape[0] });
+        }
+        // T(T(A)) = A
+        if (isUnary(operand, ComputationNodeType.TRANSPOSE)) {
+            rewriteCount++;
+            return operand.getChildren().get(0);
+        }
+        // T(-T(A)) = -A
+        if (isUnary(operand, ComputationNodeType.NEGATE)
+                && isUnary(operand.getChildren().get(0), ComputationNodeType.TRANSPOSE)) {
+            rewriteCount++;
+            return negate(operand.getChildren().get(0).getChildren().get(0));
+        }
+        // T(A * B) = T(B) * T(A), only if the new transposes cost less than transposing the product
+        if (operand.getNodeType() == ComputationNodeType.MULTIPLY && operand.getChildren().size() >= 2) {
+            long swappedCost = 0;
+            for (ComputationNode factor : operand.getChildren()) {
+                if (!isUnary(factor, ComputationNodeType.TRANSPOSE)) {
+                    swappedCost += size(factor);
+                }
+            }
+            if (swappedCost < size(operand)) {
+                rewriteCount++;
+                List<ComputationNode> factors = new ArrayList<>();
+                for (int i = operand.getChildren().size() - 1; i >= 0; i--) {
+                    factors.add(transpose(operand.getChildren().get(i)));
+                }
+                return multiply(factors);
+            }
+        }
+        return rebuild(ComputationNodeType.TRANSPOSE, List.of(operand));
+    }
+
+    private ComputationNode negate(ComputationNode operand) {
+        // -0 = 0
+        if (isZero(operand)) {
+            rewriteCount++;
+            return operand;
+        }
+        // -(-A) = A
+        if (isUnary(operand, ComputationNodeType.NEGATE)) {
+            rewriteCount++;
+            return operand.getChildren().get(0);
+        }
+        // -(A + B) = -A - B
+        if (operand.getNodeType() == ComputationNodeType.ADD) {
+            rewriteCount++;
+            boolean[] negated = new boolean[operand.getChildren().size()];
+            for (int i = 0; i < negated.length; i++) {
+                negated[i] = !operand.isOperandNegated(i);
+            }
+            return new ComputationNode(ComputationNodeType.ADD, new ArrayList<>(operand.getChildren()), negated);
+        }
+        // -(A * B) = (-A) * B, pushed into the cheapest factor if it is smaller than the product
+        if (operand.getNodeType() == ComputationNodeType.MULTIPLY && operand.getChildren().size() >= 2) {
+            List<ComputationNode> factors = operand.getChildren();
+            int cheapest = -1;
+            long cheapestCost = size(operand);
+            for (int i = 0; i < factors.size(); i++) {
+                // Negating a negated factor or a sum only removes a NEGATE or flips signs
+                long cost = isFreeToNegate(factors.get(i)) ? 0 : size(factors.get(i));
+                if (cost < cheapestCost) {
+                    cheapest = i;
+                    cheapestCost = cost;
+                }
+            }
+            if (cheapest >= 0) {
+                rewriteCount++;
+                List<ComputationNode> newFactors = new ArrayList<>(factors);
+                newFactors.set(cheapest, negate(factors.get(cheapest)));
+                return rebuild(ComputationNodeType.MULTIPLY, newFactors);
+            }
+        }
+        return rebuild(ComputationNodeType.NEGATE, List.of(operand));
+    }
+
+    private ComputationNode add(List<ComputationNode> operands, boolean[] negated) {
+        List<ComputationNode> terms = new ArrayList<>();
+        List<Boolean> signs = new ArrayList<>();
+        for (int i = 0; i < operands.size(); i++) {
+            collectTerms(operands.get(i), negated[i], terms, signs);
+        }
+        if (terms.size() != operands.size()) {
+            rewriteCount++;
+        }
+        // A + 0 = A
+        if (terms.size() >= 2 && terms.stream().anyMatch(ExpressionOptimizer::isZero)
+                && shapeOf(rebuild(ComputationNodeType.ADD, terms)) != null) {
+            rewriteCount++;
+            List<ComputationNode> nonZeroTerms = new ArrayList<>();
+            List<Boolean> nonZeroSigns = new ArrayList<>();
+            for (int i = 0; i < terms.size(); i++) {
+                if (!isZero(terms.get(i))) {
+                    nonZeroTerms.add(terms.get(i));
+                    nonZeroSigns.add(signs.get(i));
+                }
+            }
+            if (nonZeroTerms.isEmpty()) {
+                return terms.get(0);
+            }
+            if (nonZeroTerms.size() == 1) {
+                return nonZeroSigns.get(0) ? negate(nonZeroTerms.get(0)) : nonZeroTerms.get(0);
+            }
+            terms = nonZeroTerms;
+            signs = nonZeroSigns;
+        }
+        boolean[] termSigns = new boolean[terms.size()];
+        boolean anyNegated = false;
+        for (int i = 0; i < termSigns.length; i++) {
+            termSigns[i] = signs.get(i);
+            anyNegated |= termSigns[i];
+        }
+        return new ComputationNode(ComputationNodeType.ADD, terms, anyNegated ? termSigns : null);
+    }
+
+    /**
+     * Flattens nested sums and negations under an ADD operand into signed terms,
+     * so that the whole sum is computed in one pass.
+     */
+    private void collectTerms(ComputationNode operand, boolean negated, List<ComputationNode> terms, List<Boolean> signs) {
+        if (isUnary(operand, ComputationNodeType.NEGATE)) {
+            rewriteCount++;
+            collectTerms(operand.getChildren().get(0), !negated, terms, signs);
+        }
+        else if (operand.getNodeType() == ComputationNodeType.ADD) {
+            for (int i = 0; i < operand.getChildren().size(); i++) {
+                collectTerms(operand.getChildren().get(i), negated != operand.isOperandNegated(i), terms, signs);
+            }
+        }
+        else {
+            terms.add(operand);
+            signs.add(negated);
+        }
+    }
+
+    private ComputationNode multiply(List<ComputationNode> factors) {
+        int[] shape = factors.size() >= 2 ? shapeOf(rebuild(ComputationNodeType.MULTIPLY, factors)) : null;
+        if (shape != null) {
+            // A * 0 = 0
+            if (factors.stream().anyMatch(ExpressionOptimizer::isZero)) {
+                return zeros(shape);
+            }
+            // A * I = A: the product is well shaped, so every identity has the size of its neighbours
+            List<ComputationNode> kept = new ArrayList<>();
+            for (ComputationNode factor : factors) {
+                if (!isIdentity(factor)) {
+                    kept.add(factor);
+                }
+            }
+            if (kept.size() < factors.size()) {
+                rewriteCount++;
+                if (kept.size() <= 1) {
+                    return kept.isEmpty() ? factors.get(0) : kept.get(0);
+                }
+                factors = kept;
+            }
+        }
+        // (-A) * (-B) = A * B: strip every negated factor and negate the product once if the count is odd
+        int negated = 0;
+        for (ComputationNode factor : factors) {
+            if (isUnary(factor, ComputationNodeType.NEGATE)) {
+                negated++;
+            }
+        }
+        if (negated < 2) {
+            return rebuild(ComputationNodeType.MULTIPLY, factors);
+        }
+        rewriteCount++;
+        List<ComputationNode> stripped = new ArrayList<>();
+        for (ComputationNode factor : factors) {
+            stripped.add(isUnary(factor, ComputationNodeType.NEGATE) ? factor.getChildren().get(0) : factor);
+        }
+        ComputationNode product = rebuild(ComputationNodeType.MULTIPLY, stripped);
+        return negated % 2 == 0 ? product : negate(product);
+    }
+
+    private ComputationNode power(ComputationNode operand, int exponent) {
+        // I^k = I, 0^k = 0 and 0^0 = I
+        int[] shape = shapeOf(operand);
+        if (shape == null || shape[0] != shape[1]) {
+            // Leave non-square operands to the engine, which reports the shape error
+            return new ComputationNode(operand, exponent);
+        }
+        if (isIdentity(operand) || isZero(operand)) {
+            rewriteCount++;
+            if (exponent == 0 && isZero(operand)) {
+                return new ComputationNode(GeneratedMatrix.identity(shape[0], 1));
+            }
+            return operand;
+        }
+        // A^1 = A
+        if (exponent == 1) {
+            rewriteCount++;
+            return operand;
+        }
+        // (A^j)^k = A^(j*k), unless the exponent overflows
+        if (operand.getNodeType() == ComputationNodeType.POWER
+                && (long) operand.getExponent() * exponent <= Integer.MAX_VALUE) {
+            rewriteCount++;
+            return power(operand.getChildren().get(0), operand.getExponent() * exponent);
+        }
+        // (-A)^k = A^k for an even k, -(A^k) for an odd one
+        if (isUnary(operand, ComputationNodeType.NEGATE)) {
+            rewriteCount++;
+            ComputationNode unsigned = power(operand.getChildren().get(0), exponent);
+            return exponent % 2 == 0 ? unsigned : negate(unsigned);
+        }
+        return new ComputationNode(operand, exponent);
+    }
+
+    private ComputationNode solve(List<ComputationNode> operands) {
+        // I \ B = B
+        if (operands.size() == 2 && isIdentity(operands.get(0)) && shapeOf(rebuild(ComputationNodeType.SOLVE, operands)) != null) {
+            rewriteCount++;
+            return operands.get(1);
+        }
+        return rebuild(ComputationNodeType.SOLVE, operands);
+    }
+
+    private ComputationNode zeros(int[] shape) {
+        rewriteCount++;
+        return new ComputationNode(GeneratedMatrix.zeros(shape[0], shape[1]));
+    }
+
+    private static ComputationNode rebuild(ComputationNodeType nodeType, List<ComputationNode> children) {
+        // The engine nests operands in place, so the children list must stay mutable
+        return new ComputationNode(nodeType, new ArrayList<>(children));
+    }
+
+    private static boolean isIdentity(ComputationNode node) {
+        return node.getNodeType() == ComputationNodeType.MATRIX && node.getSource() instanceof GeneratedMatrix generated
+                && generated.isIdentity();
+    }
+
+    private static boolean isZero(ComputationNode node) {
+        return node.getNodeType() == ComputationNodeType.MATRIX && node.getSource() instanceof GeneratedMatrix generated
+                && generated.isZero();
+    }
+
+    /**
+     * Returns the shape of a node, or null if its operands do not fit together.
+     */
+    private static int[] shapeOf(ComputationNode node) {
+        try {
+            return node.getShape();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isFreeToNegate(ComputationNode node) {
+        return isUnary(node, ComputationNodeType.NEGATE) || node.getNodeType() == ComputationNodeType.ADD;
+    }
+
+    private static boolean isUnary(ComputationNode node, ComputationNodeType nodeType) {
+        return node.getNodeType() == nodeType && node.getChildren().size() == 1;
+    }
+
+    private static long size(ComputationNode node) {
+        int[] shape = node.getShape();
+        return (long) shape[0] * shape[1];
+    }
+}
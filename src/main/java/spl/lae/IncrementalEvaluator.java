@@ -0,0 +1,294 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Re-evaluates the same expression after some of its input leaves changed, recomputing only the nodes
+ * on the paths from the changed leaves to the root.
+ * The original tree is never resolved: the value of every node is kept next to it, and each operator
+ * that has to be recomputed is evaluated on a copy whose operands are the kept values.
+ *
+ * A leaf can be replaced (updateLeaf), which recomputes every node above it, or receive an additive
+ * rank-k update A += U * V^T (addToLeaf). Additive updates are propagated as low-rank deltas as long as
+ * that is cheaper than recomputing:
+ *   -(A + d)      = -A + (-U) V^T
+ *   T(A + d)      = T(A) + V U^T
+ *   sum of terms  = sum + deltas of the changed terms, side by side
+ *   (A + dA) B    = AB + U_A (B^T V_A)^T
+ *   A (B + dB)    = AB + (A U_B) V_B^T
+ * Results updated through deltas can differ from a full recomputation by rounding.
+ */
+public class IncrementalEvaluator implements AutoCloseable {
+
+    private final LinearAlgebraEngine engine;
+    private final ComputationNode root;
+    private final List<ComputationNode> order = new ArrayList<>(); // operator nodes, operands first
+    private final Map<ComputationNode, double[][]> values = new IdentityHashMap<>();
+
+    // Changes since the last evaluation: replaced leaves, and low-rank deltas of updated leaves
+    private final Set<ComputationNode> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<ComputationNode, Delta> deltas = new IdentityHashMap<>();
+    private final Map<ComputationNode, double[][]> previousValues = new IdentityHashMap<>();
+
+    private int recomputedCount = 0;
+    private int deltaUpdateCount = 0;
+
+    /**
+     * A change U * V^T of a matrix: U has one row per row of the matrix, V one row per column,
+     * and both have one column per rank.
+     */
+    private record Delta(double[][] u, double[][] v) {
+        int rank() {
+            return u.length == 0 ? 0 : u[0].length;
+        }
+    }
+
+    public IncrementalEvaluator(int numThreads, ComputationNode root) {
+        this.engine = new LinearAlgebraEngine(numThreads);
+        this.root = root;
+        collect(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private void collect(ComputationNode node, Set<ComputationNode> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            values.put(node, node.getMatrix());
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            collect(child, visited);
+        }
+        order.add(node);
+    }
+
+    /**
+     * Replaces the matrix of an input leaf; every node above it is recomputed by the next evaluate().
+     */
+    public void updateLeaf(ComputationNode leaf, double[][] matrix) {
+        checkLeaf(leaf);
+        int[] shape = leaf.getShape();
+        if (matrix.length != shape[0] || (matrix.length > 0 && matrix[0].length != shape[1])) {
+            throw new IllegalArgumentException("Updated leaf must keep its shape");
+        }
+        previousValues.putIfAbsent(leaf, values.get(leaf));
+        values.put(leaf, matrix);
+        leaf.resolve(matrix);
+        replaced.add(leaf);
+        deltas.remove(leaf);
+    }
+
+    /**
+     * Adds u * v^T to an input leaf, where u is rows x k and v is cols x k.
+     */
+    public void addToLeaf(ComputationNode leaf, double[][] u, double[][] v) {
+        checkLeaf(leaf);
+        int[] shape = leaf.getShape();
+        if (u.length != shape[0] || v.length != shape[1]
+                || (u.length > 0 && v.length > 0 && u[0].length != v[0].length)) {
+            throw new IllegalArgumentException("Update factors do not match the leaf shape");
+        }
+        Delta delta = new Delta(u, v);
+        previousValues.putIfAbsent(leaf, values.get(leaf));
+        double[][] updated = applyDelta(values.get(leaf), delta);
+        values.put(leaf, updated);
+        leaf.resolve(updated);
+        if (!replaced.contains(leaf)) {
+            Delta pending = deltas.get(leaf);
+            deltas.put(leaf, pending == null ? delta : concat(List.of(pending, delta)));
+        }
+    }
+
+    private void checkLeaf(ComputationNode leaf) {
+        if (leaf.getNodeType() != ComputationNodeType.MATRIX || !values.containsKey(leaf)) {
+            throw new IllegalArgumentException("Not an input leaf of this expression");
+        }
+    }
+
+    /**
+     * Brings every node up to date and returns the value of the root. The returned matrix must not be modified.
+     */
+    public double[][] evaluate() {
+        for (ComputationNode node : order) {
+            boolean first = !values.containsKey(node);
+            boolean anyReplaced = false;
+            boolean anyDelta = false;
+            for (ComputationNode child : node.getChildren()) {
+                anyReplaced |= replaced.contains(child);
+                anyDelta |= deltas.containsKey(child);
+            }
+            if (!first && !anyReplaced && !anyDelta) {
+                continue;
+            }
+            Delta delta = first || anyReplaced ? null : propagate(node);
+            previousValues.put(node, values.get(node));
+            if (delta != null) {
+                values.put(node, applyDelta(values.get(node), delta));
+                deltas.put(node, delta);
+                deltaUpdateCount++;
+            } else {
+                values.put(node, recompute(node));
+                replaced.add(node);
+                recomputedCount++;
+            }
+        }
+        replaced.clear();
+        deltas.clear();
+        previousValues.clear();
+        return values.get(root);
+    }
+
+    private double[][] recompute(ComputationNode node) {
+        List<ComputationNode> operands = new ArrayList<>();
+        boolean[] negated = new boolean[node.getChildren().size()];
+        for (int i = 0; i < negated.length; i++) {
+            operands.add(new ComputationNode(values.get(node.getChildren().get(i))));
+            negated[i] = node.isOperandNegated(i);
+        }
+        ComputationNode copy = node.getNodeType() == ComputationNodeType.POWER
+                ? new ComputationNode(operands.get(0), node.getExponent())
+                : new ComputationNode(node.getNodeType(), operands, negated);
+        engine.computeOperator(copy);
+        return copy.getMatrix();
+    }
+
+    /**
+     * Returns the delta of a node whose changed operands all have a delta, or null if it is cheaper,
+     * or only possible, to recompute the node.
+     */
+    private Delta propagate(ComputationNode node) {
+        List<ComputationNode> children = node.getChildren();
+        Delta delta;
+        switch (node.getNodeType()) {
+            case NEGATE:
+                delta = new Delta(scale(deltas.get(children.get(0)).u(), -1), deltas.get(children.get(0)).v());
+                break;
+            case TRANSPOSE:
+                delta = new Delta(deltas.get(children.get(0)).v(), deltas.get(children.get(0)).u());
+                break;
+            case ADD: {
+                List<Delta> terms = new ArrayList<>();
+                for (int i = 0; i < children.size(); i++) {
+                    Delta term = deltas.get(children.get(i));
+                    if (term != null) {
+                        terms.add(node.isOperandNegated(i) ? new Delta(scale(term.u(), -1), term.v()) : term);
+                    }
+                }
+                delta = concat(terms);
+                break;
+            }
+            case MULTIPLY: {
+                if (children.size() != 2) {
+                    return null;
+                }
+                ComputationNode left = children.get(0);
+                ComputationNode right = children.get(1);
+                List<Delta> terms = new ArrayList<>();
+                Delta leftDelta = deltas.get(left);
+                Delta rightDelta = deltas.get(right);
+                if (leftDelta != null) {
+                    // dA * B_new = U_A (B_new^T V_A)^T
+                    double[][] bTransposedV = InlineKernels.multiply(InlineKernels.transpose(values.get(right)), leftDelta.v());
+                    terms.add(new Delta(leftDelta.u(), bTransposedV));
+                }
+                if (rightDelta != null) {
+                    // A_old * dB = (A_old U_B) V_B^T
+                    double[][] leftOld = previousValues.getOrDefault(left, values.get(left));
+                    terms.add(new Delta(InlineKernels.multiply(leftOld, rightDelta.u()), rightDelta.v()));
+                }
+                delta = concat(terms);
+                break;
+            }
+            default:
+                return null;
+        }
+        // A delta of rank k costs k * (rows + cols) to keep and rows * cols * k to apply
+        int[] shape = { delta.u().length, delta.v().length };
+        if ((long) delta.rank() * (shape[0] + shape[1]) >= (long) shape[0] * shape[1]) {
+            return null;
+        }
+        return delta;
+    }
+
+    private static Delta concat(List<Delta> terms) {
+        int rank = 0;
+        for (Delta term : terms) {
+            rank += term.rank();
+        }
+        int rows = terms.get(0).u().length;
+        int cols = terms.get(0).v().length;
+        double[][] u = new double[rows][rank];
+        double[][] v = new double[cols][rank];
+        int offset = 0;
+        for (Delta term : terms) {
+            for (int i = 0; i < rows; i++) {
+                System.arraycopy(term.u()[i], 0, u[i], offset, term.rank());
+            }
+            for (int j = 0; j < cols; j++) {
+                System.arraycopy(term.v()[j], 0, v[j], offset, term.rank());
+            }
+            offset += term.rank();
+        }
+        return new Delta(u, v);
+    }
+
+    private static double[][] scale(double[][] matrix, double factor) {
+        double[][] result = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            result[i] = new double[matrix[i].length];
+            for (int j = 0; j < matrix[i].length; j++) {
+                result[i][j] = factor * matrix[i][j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns matrix + U V^T as a new matrix; kept values may have been handed out, so they are never modified.
+     */
+    private static double[][] applyDelta(double[][] matrix, Delta delta) {
+        double[][] result = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            double[] row = matrix[i].clone();
+            double[] u = delta.u()[i];
+            for (int j = 0; j < row.length; j++) {
+                double[] v = delta.v()[j];
+                double sum = 0;
+                for (int t = 0; t < u.length; t++) {
+                    sum += u[t] * v[t];
+                }
+                row[j] += sum;
+            }
+            result[i] = row;
+        }
+        return result;
+    }
+
+    /**
+     * Number of operator evaluations done from scratch so far, including the first evaluation.
+     */
+    public int getRecomputedCount() {
+        return recomputedCount;
+    }
+
+    /**
+     * Number of operator results updated through a low-rank delta so far.
+     */
+    public int getDeltaUpdateCount() {
+        return deltaUpdateCount;
+    }
+
+    @Override
+    public void close() {
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,124 @@
+package spl.lae;
+
+/**
+ * Single-threaded kernels for operators too small to be worth scheduling on the executor.
+ * They work directly on the resolved operand arrays, without loading them into shared memory.
+ * Every kernel accumulates in the same order as its parallel counterpart, so whether an operator
+ * runs inline or on the executor does not change the result.
+ */
+public final class InlineKernels {
+
+    private InlineKernels() {}
+
+    public static double[][] add(double[][][] operands, boolean[] negated, int rows, int cols) {
+        double[][] result = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            double[] sum = result[i];
+            for (int k = 0; k < operands.length; k++) {
+                double[] row = operands[k][i];
+                if (negated[k]) {
+                    for (int j = 0; j < cols; j++) {
+                        sum[j] -= row[j];
+                    }
+                } else {
+                    for (int j = 0; j < cols; j++) {
+                        sum[j] += row[j];
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public static double[][] negate(double[][] matrix) {
+        double[][] result = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            double[] row = matrix[i];
+            double[] out = new double[row.length];
+            for (int j = 0; j < row.length; j++) {
+                out[j] = -row[j];
+            }
+            result[i] = out;
+        }
+        return result;
+    }
+
+    public static double[][] transpose(double[][] matrix) {
+        int rows = matrix.length;
+        int cols = rows == 0 ? 0 : matrix[0].length;
+        double[][] result = new double[cols][rows];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                result[j][i] = matrix[i][j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Row-major product in i-k-j order, unrolled by four along the inner dimension.
+     * Each output element still sums its k terms from first to last, like SharedVector.dot.
+     */
+    public static double[][] multiply(double[][] left, double[][] right) {
+        int rows = left.length;
+        int inner = right.length;
+        int cols = inner == 0 ? 0 : right[0].length;
+        if (rows > 0 && left[0].length != inner) {
+            throw new IllegalArgumentException("Matrix dimension mismatch: Inner dimensions must agree.");
+        }
+        double[][] result = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            double[] a = left[i];
+            double[] out = result[i];
+            int k = 0;
+            for (; k + 3 < inner; k += 4) {
+                double a0 = a[k], a1 = a[k + 1], a2 = a[k + 2], a3 = a[k + 3];
+                double[] b0 = right[k], b1 = right[k + 1], b2 = right[k + 2], b3 = right[k + 3];
+                for (int j = 0; j < cols; j++) {
+                    out[j] = out[j] + a0 * b0[j] + a1 * b1[j] + a2 * b2[j] + a3 * b3[j];
+                }
+            }
+            for (; k < inner; k++) {
+                double ak = a[k];
+                double[] b = right[k];
+                for (int j = 0; j < cols; j++) {
+                    out[j] += ak * b[j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Row-major product of left and a right operand stored column by column (columns[j] is column j),
+     * one dot product per output element, summed from first to last like SharedVector.dot.
+     */
+    public static double[][] multiplyColumns(double[][] left, double[][] columns) {
+        int rows = left.length;
+        int cols = columns.length;
+        int inner = cols == 0 ? 0 : columns[0].length;
+        if (rows > 0 && cols > 0 && left[0].length != inner) {
+            throw new IllegalArgumentException("Matrix dimension mismatch: Inner dimensions must agree.");
+        }
+        double[][] result = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            double[] a = left[i];
+            double[] out = result[i];
+            for (int j = 0; j < cols; j++) {
+                double[] b = columns[j];
+                double sum = 0;
+                for (int k = 0; k < inner; k++) {
+                    sum += a[k] * b[k];
+                }
+                out[j] = sum;
+            }
+        }
+        return result;
+    }
+
+    public static double[][] fused(ElementwiseKernel kernel, double[][][] operands, int rows, int cols) {
+        double[][] result = new double[rows][cols];
+        kernel.computeRows(operands, 0, rows, result);
+        return result;
+    }
+}
@@ -0,0 +1,108 @@
+package spl.lae;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Assigns a storage layout to every operator node, so that kernels write their result in the order
+ * their consumer reads it instead of converting it afterwards.
+ * A MULTIPLY reads its left operand row by row and its right operands column by column; the root is read row-major.
+ * Some nodes have a natural layout they produce for free, and keep it whatever their consumer wants:
+ * a TRANSPOSE is only a relabelling of its operand's storage (row-major A is column-major T(A)),
+ * a NEGATE keeps its operand's layout, an ADD or FUSED node follows the majority of its operands,
+ * and a POWER or SOLVE is always computed row-major.
+ * Input matrices are row-major. A node shared by several consumers gets the layout wanted by the first one.
+ * The plan only affects speed: every consumer checks the layout its operands were actually stored in.
+ */
+public class LayoutPlanner {
+
+    private final Map<ComputationNode, VectorOrientation> naturalLayouts = new IdentityHashMap<>();
+    private Map<ComputationNode, VectorOrientation> plannedLayouts;
+
+    public Map<ComputationNode, VectorOrientation> plan(ComputationNode root) {
+        naturalLayouts.clear();
+        plannedLayouts = new IdentityHashMap<>();
+        assign(root, VectorOrientation.ROW_MAJOR);
+        Map<ComputationNode, VectorOrientation> plan = plannedLayouts;
+        // The planner outlives the run, it must not keep the nodes of the tree reachable
+        naturalLayouts.clear();
+        plannedLayouts = null;
+        return plan;
+    }
+
+    private void assign(ComputationNode node, VectorOrientation wanted) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX || plannedLayouts.containsKey(node)) {
+            return;
+        }
+        VectorOrientation natural = naturalLayout(node);
+        VectorOrientation layout = natural != null ? natural : wanted;
+        plannedLayouts.put(node, layout);
+        for (int i = 0; i < node.getChildren().size(); i++) {
+            ComputationNode child = node.getChildren().get(i);
+            switch (node.getNodeType()) {
+                case TRANSPOSE:
+                    assign(child, flip(layout));
+                    break;
+                case MULTIPLY:
+                    assign(child, i == 0 ? VectorOrientation.ROW_MAJOR : VectorOrientation.COLUMN_MAJOR);
+                    break;
+                default:
+                    assign(child, layout);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the layout a node produces at no extra cost, or null if it can produce either one.
+     */
+    private VectorOrientation naturalLayout(ComputationNode node) {
+        if (naturalLayouts.containsKey(node)) {
+            return naturalLayouts.get(node);
+        }
+        VectorOrientation natural;
+        switch (node.getNodeType()) {
+            case MATRIX:
+                natural = node.getLayout();
+                break;
+            case TRANSPOSE: {
+                VectorOrientation operand = naturalLayout(node.getChildren().get(0));
+                natural = operand == null ? null : flip(operand);
+                break;
+            }
+            case NEGATE:
+                natural = naturalLayout(node.getChildren().get(0));
+                break;
+            case ADD:
+            case FUSED: {
+                // Operands stored like the result are streamed; the others cost a conversion or strided reads
+                int balance = 0;
+                for (ComputationNode child : node.getChildren()) {
+                    VectorOrientation operand = naturalLayout(child);
+                    if (operand != null) {
+                        balance += operand == VectorOrientation.ROW_MAJOR ? 1 : -1;
+                    }
+                }
+                natural = balance > 0 ? VectorOrientation.ROW_MAJOR : balance < 0 ? VectorOrientation.COLUMN_MAJOR : null;
+                break;
+            }
+            case POWER:
+            case SOLVE:
+                natural = VectorOrientation.ROW_MAJOR;
+                break;
+            default:
+                natural = null;
+                break;
+        }
+        naturalLayouts.put(node, natural);
+        return natural;
+    }
+
+    static VectorOrientation flip(VectorOrientation layout) {
+        return layout == VectorOrientation.ROW_MAJOR ? VectorOrientation.COLUMN_MAJOR : VectorOrientation.ROW_MAJOR;
+    }
+}
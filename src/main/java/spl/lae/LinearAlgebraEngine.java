@@ -1,14 +1,21 @@
 package spl.lae;
 
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import memory.SharedMatrix;
 import memory.SharedVector;
+import memory.VectorOrientation;
 import parser.ComputationNode;
 import parser.ComputationNodeType;
+import parser.RowSink;
 import scheduling.TiredExecutor;
 
 public class LinearAlgebraEngine {
@@ -16,11 +23,121 @@ public class LinearAlgebraEngine {
     private SharedMatrix leftMatrix = new SharedMatrix();
     private SharedMatrix rightMatrix = new SharedMatrix();
     private TiredExecutor executor;
+    private final ExpressionOptimizer optimizer = new ExpressionOptimizer();
+    private final CommonSubexpressionEliminator subexpressions = new CommonSubexpressionEliminator();
+    private final ElementwiseFusion fusion = new ElementwiseFusion();
+    private final LayoutPlanner layoutPlanner = new LayoutPlanner();
+    private Map<ComputationNode, VectorOrientation> plannedLayouts = Map.of();
+    private final Map<ComputationNode, ComputationNode> soleParents = new IdentityHashMap<>(); // for row pipelining
+    private final MemoryPlanner memory = new MemoryPlanner();
+    private List<ComputationNode> schedule = List.of();
+    private int scheduleIndex = 0;
+    private final Set<ComputationNode> pipedStages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long memoryBudget = Long.MAX_VALUE; // bytes of intermediate results kept in memory
+    private SpillStore spillStore = null; // null when spilling is disabled
+    private final ResultCache cache; // shared across runs, null when caching is disabled
+    private Map<ComputationNode, String> cacheKeys = Map.of();
+    private RowEmitter rootRows = null; // set while a run streams the rows of its result
+
+    // Operators with fewer floating-point operations than this run on the calling thread
+    private static long calibratedInlineThreshold = -1; // measured once per process, guarded by the class lock
+    private static final long MIN_INLINE_THRESHOLD = 1_000;
+    private static final long MAX_INLINE_THRESHOLD = 10_000_000;
+    private static final int CALIBRATION_WARMUP_ROUNDS = 64;
+    private static final int CALIBRATION_ROUNDS = 16;
+    private long inlineThreshold = -1; // -1 until calibrated or set
 
     public LinearAlgebraEngine(int numThreads) {
+        this(numThreads, null);
+    }
+
+    public LinearAlgebraEngine(int numThreads, ResultCache cache) {
         // TODO: create executor with given thread count
 
         this.executor = new TiredExecutor(numThreads);
+        this.cache = cache;
+    }
+
+    /**
+     * Overrides the calibrated inline threshold for this engine; 0 sends every operator to the executor.
+     */
+    public void setInlineThreshold(long flops) {
+        this.inlineThreshold = flops;
+    }
+
+    /**
+     * Returns the inline threshold, calibrating it on first use unless setInlineThreshold was called.
+     */
+    public long getInlineThreshold() {
+        if (inlineThreshold < 0) {
+            inlineThreshold = calibratedInlineThreshold(executor.getWorkerCount());
+        }
+        return inlineThreshold;
+    }
+
+    /**
+     * Limits the intermediate results kept in memory to maxBytes; beyond that, results that are not
+     * needed soon are spilled to files in scratchDir and loaded back when a parent consumes them.
+     * Input matrices are not counted.
+     */
+    public void setMemoryBudget(long maxBytes, Path scratchDir) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be non-negative");
+        }
+        this.memoryBudget = maxBytes;
+        this.spillStore = new SpillStore(scratchDir);
+    }
+
+    /**
+     * Measures the round trip of a batch of empty tasks on an executor of the same size and the speed of the
+     * inline multiply kernel, and returns how many flops the calling thread can do in the time the round trip
+     * takes. Both are warmed up before they are timed. The probe executor is separate from the engine's, so
+     * the calibration shows up neither in the worker report nor in the measured task overhead.
+     */
+    private static synchronized long calibratedInlineThreshold(int workers) {
+        if (calibratedInlineThreshold >= 0) {
+            return calibratedInlineThreshold;
+        }
+        List<Runnable> emptyTasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            emptyTasks.add(() -> {});
+        }
+        long roundTripNanos = Long.MAX_VALUE;
+        TiredExecutor probe = new TiredExecutor(workers);
+        try {
+            for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS + CALIBRATION_ROUNDS; i++) {
+                long start = System.nanoTime();
+                probe.submitAll(emptyTasks);
+                if (i >= CALIBRATION_WARMUP_ROUNDS) {
+                    roundTripNanos = Math.min(roundTripNanos, System.nanoTime() - start);
+                }
+            }
+        } finally {
+            try {
+                probe.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int n = 32;
+        double[][] sample = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            sample[i][i] = 1;
+        }
+        long multiplyNanos = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS + CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            InlineKernels.multiply(sample, sample);
+            if (i >= CALIBRATION_WARMUP_ROUNDS) {
+                multiplyNanos = Math.min(multiplyNanos, System.nanoTime() - start);
+            }
+        }
+        double nanosPerFlop = Math.max(multiplyNanos, 1) / (2.0 * n * n * n);
+
+        long threshold = (long) (roundTripNanos / nanosPerFlop);
+        calibratedInlineThreshold = Math.max(MIN_INLINE_THRESHOLD, Math.min(MAX_INLINE_THRESHOLD, threshold));
+        return calibratedInlineThreshold;
     }
 
     public ComputationNode run(ComputationNode computationRoot) {
@@ -28,96 +145,649 @@ public class LinearAlgebraEngine {
         if (computationRoot.getNodeType() == ComputationNodeType.MATRIX) {
             return computationRoot;
         }
-        while (computationRoot.getNodeType() != ComputationNodeType.MATRIX) {
-            // Find the next node ready for computation (all children are matrices)
-            ComputationNode resolver = computationRoot.findResolvable();
-            if (resolver == null) {
-                break; 
-            }
-            // Handle operations with >2 operands (e.g., A+B+C -> (A+B)+C)
-            resolver.associativeNesting();
-            // Check if the node is still resolvable after nesting.
-            // Nesting might have introduced a new operator node as a child.
-            boolean isStillResolvable = true;
-            for (ComputationNode child : resolver.getChildren()) {
-                if (child.getNodeType() != ComputationNodeType.MATRIX) {
-                    isStillResolvable = false;
-                    break;
+        try {
+            // Kernels read operand rows on the workers, so malformed inputs are rejected here first
+            validateLeaves(computationRoot, Collections.newSetFromMap(new IdentityHashMap<>()));
+            // Rewrite the tree into a cheaper equivalent before evaluating it
+            computationRoot = optimizer.optimize(computationRoot);
+            // Share identical subtrees so that each is computed once
+            computationRoot = subexpressions.eliminate(computationRoot);
+            // Evaluate element-wise chains with one row kernel each
+            computationRoot = fusion.fuse(computationRoot);
+            // Decide in which order each intermediate result is stored, so consumers read it without converting
+            plannedLayouts = layoutPlanner.plan(computationRoot);
+            // Short-circuit every subtree whose result is already cached
+            if (cache != null) {
+                cacheKeys = ResultCache.keysOf(computationRoot);
+                resolveCached(computationRoot, Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+            findSoleParents(computationRoot, Collections.newSetFromMap(new IdentityHashMap<>()));
+            // Evaluate operands in the order that keeps the fewest intermediate bytes alive
+            schedule = memory.plan(computationRoot);
+            while (computationRoot.getNodeType() != ComputationNodeType.MATRIX) {
+                // Find the next node ready for computation (all children are matrices)
+                ComputationNode resolver = nextResolvable(computationRoot);
+                if (resolver == null) {
+                    break; 
                 }
+                // Handle operations with >2 operands (e.g., A*B*C -> (A*B)*C).
+                // ADD and FUSED nodes consume all their operands in one kernel, so they are never nested.
+                if (resolver.getNodeType() == ComputationNodeType.MULTIPLY && resolver.getChildren().size() > 2) {
+                    resolver.associativeNesting();
+                    // The nested products form a chain that can be pipelined, (A*B) feeding (A*B)*C row by row
+                    for (ComputationNode n = resolver; n.getChildren().size() == 2
+                            && n.getChildren().get(0).getNodeType() != ComputationNodeType.MATRIX; n = n.getChildren().get(0)) {
+                        soleParents.put(n.getChildren().get(0), n);
+                    }
+                }
+                // Check if the node is still resolvable after nesting.
+                // Nesting might have introduced a new operator node as a child.
+                boolean isStillResolvable = true;
+                for (ComputationNode child : resolver.getChildren()) {
+                    if (child.getNodeType() != ComputationNodeType.MATRIX) {
+                        isStillResolvable = false;
+                        break;
+                    }
+                }
+                // Only compute if all children are concrete matrices
+                if (isStillResolvable) {
+                    List<ComputationNode> stages = rowPipelineFrom(resolver);
+                    ComputationNode top = stages.get(stages.size() - 1);
+                    List<ComputationNode> operands = new ArrayList<>();
+                    for (ComputationNode stage : stages) {
+                        for (ComputationNode child : stage.getChildren()) {
+                            if (!stages.contains(child)) operands.add(child);
+                        }
+                    }
+                    // Input leaves are parsed on first use; the ones this step needs are parsed side by side
+                    loadInParallel(operands);
+                    // A streamed root is computed by bands of rows, even on its own, so that each band is written once done
+                    boolean streamed = rootRows != null && top == computationRoot
+                            && rowLocalLayout(stages.get(0), null, null) == VectorOrientation.ROW_MAJOR
+                            && (stages.size() > 1 || estimateFlops(top) >= getInlineThreshold());
+                    if (stages.size() > 1 || streamed) {
+                        computePipeline(stages, streamed);
+                        for (ComputationNode stage : stages) {
+                            if (stage.getNodeType() == ComputationNodeType.MATRIX) cacheResult(stage);
+                            // A stage whose rows were only piped is done, even though it is left unresolved
+                            else pipedStages.add(stage);
+                        }
+                    } else {
+                        loadAndCompute(resolver);
+                        cacheResult(resolver);
+                    }
+                    memory.recordStep(List.of(top), operands);
+                    if (spillStore != null) {
+                        memory.enforceBudget(memoryBudget, spillStore);
+                    }
+                }
+            }
+            return computationRoot;
+        } finally {
+            if (spillStore != null) {
+                // Intermediate results are not needed after the run, whether it completed or failed;
+                // a completed root is never spilled
+                spillStore.clear();
+            }
+            forgetRun();
+            shutdown();
+        }
+    }
+
+    /**
+     * Checks that every resident input matrix under node has rows of one length.
+     * Inputs that are not loaded yet were checked by the parser, and intermediate results are always rectangular.
+     */
+    private static void validateLeaves(ComputationNode node, Set<ComputationNode> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            if (node.isResident()) {
+                requireRectangular(node.getStorage());
+            }
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            validateLeaves(child, visited);
+        }
+    }
+
+    private static void requireRectangular(double[][] storage) {
+        for (double[] row : storage) {
+            if (row == null) {
+                throw new IllegalArgumentException("All rows must be non-null");
+            }
+            if (row.length != storage[0].length) {
+                throw new IllegalArgumentException("All rows must have the same length");
+            }
+        }
+    }
+
+    /**
+     * Drops the per-run state, which refers to the nodes of the tree and through them to their matrices.
+     */
+    private void forgetRun() {
+        plannedLayouts = Map.of();
+        soleParents.clear();
+        cacheKeys = Map.of();
+        schedule = List.of();
+        scheduleIndex = 0;
+        pipedStages.clear();
+        leftMatrix = new SharedMatrix();
+        rightMatrix = new SharedMatrix();
+        memory.forgetRun();
+    }
+
+    /**
+     * Like run(), and also writes the rows of the result to sink, in order. When the root is computed by bands
+     * of rows in row-major order (sums, negations, fused element-wise chains and products that are not split
+     * along their inner dimension), each row is written as soon as it and the rows above it are done, while
+     * the rest of the root is still being computed. Otherwise the rows are written once the root is resolved.
+     */
+    public ComputationNode run(ComputationNode computationRoot, RowSink sink) {
+        rootRows = new RowEmitter(sink);
+        try {
+            ComputationNode result = run(computationRoot);
+            rootRows.finish(result.getMatrix());
+            return result;
+        } finally {
+            rootRows = null;
+        }
+    }
+
+    /**
+     * Computes only rows [rowStart, rowEnd) and columns [colStart, colEnd) of the result.
+     * The block is pushed down the tree first (see ResultSlicer), so only the parts of the operands
+     * that contribute to it are computed.
+     */
+    public ComputationNode run(ComputationNode computationRoot, int rowStart, int rowEnd, int colStart, int colEnd) {
+        return run(new ResultSlicer().slice(computationRoot, rowStart, rowEnd, colStart, colEnd));
+    }
+
+    /**
+     * Computes a single operator whose operands are all resolved, without the rewriting passes of run()
+     * and without shutting the executor down, so that the engine can be used again.
+     * Callers must call shutdown() when they are done with the engine.
+     */
+    public void computeOperator(ComputationNode node) {
+        for (ComputationNode child : node.getChildren()) {
+            if (child.getNodeType() != ComputationNodeType.MATRIX) {
+                throw new IllegalArgumentException("computeOperator expects resolved operands");
             }
-            // Only compute if all children are concrete matrices
-            if (isStillResolvable) {
-                loadAndCompute(resolver);
+            requireRectangular(child.getStorage());
+        }
+        plannedLayouts = Map.of();
+        while (node.getNodeType() != ComputationNodeType.MATRIX) {
+            ComputationNode resolver = node.findResolvable();
+            if (resolver.getNodeType() == ComputationNodeType.MULTIPLY && resolver.getChildren().size() > 2) {
+                // Nested products are found below the node on the next iteration
+                resolver.associativeNesting();
+                continue;
             }
+            loadAndCompute(resolver);
         }
+    }
+
+    /**
+     * Stops the worker threads; run() does this itself when it finishes.
+     */
+    public void shutdown() {
         try {
             executor.shutdown();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        return computationRoot;
+    }
+
+    /**
+     * Loads the leaves among operands that are not in memory yet (lazily parsed inputs or spilled results),
+     * one task per leaf.
+     */
+    private void loadInParallel(List<ComputationNode> operands) {
+        Set<ComputationNode> unloaded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ComputationNode operand : operands) {
+            if (operand.getNodeType() == ComputationNodeType.MATRIX && !operand.isResident()) {
+                unloaded.add(operand);
+            }
+        }
+        if (unloaded.size() < 2) {
+            return;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        for (ComputationNode leaf : unloaded) {
+            tasks.add(leaf::getStorage);
+        }
+        executor.submitAll(tasks);
+    }
+
+    /**
+     * Returns the next node to compute, following the memory-aware schedule.
+     * Products nested while running are not in the schedule, they are found below their scheduled node.
+     */
+    private ComputationNode nextResolvable(ComputationNode root) {
+        while (scheduleIndex < schedule.size()) {
+            ComputationNode node = schedule.get(scheduleIndex);
+            if (node.getNodeType() != ComputationNodeType.MATRIX && !pipedStages.contains(node)) {
+                return node.findResolvable();
+            }
+            scheduleIndex++;
+        }
+        return root.findResolvable();
+    }
+
+    /**
+     * Returns the predicted and the accounted peak of intermediate results alive at once in the last run,
+     * both computed from the sizes of the matrices (see MemoryPlanner), not measured on the heap.
+     */
+    public String getMemoryReport() {
+        String report = String.format("Memory: predicted peak=%d bytes, accounted peak=%d bytes\n",
+                memory.getPredictedPeak(), memory.getAccountedPeak());
+        if (spillStore != null) {
+            report += String.format("Spilled: %d matrices, %d bytes, %d loads, %d delete failures\n",
+                    spillStore.getSpillCount(), spillStore.getSpilledBytes(), spillStore.getFaultCount(),
+                    spillStore.getDeleteFailures());
+        }
+        return report;
+    }
+
+    private void cacheResult(ComputationNode node) {
+        String key = cacheKeys.get(node);
+        if (key != null) {
+            // A column-major result is the row-major matrix of its transpose
+            cache.put(node.getLayout() == VectorOrientation.ROW_MAJOR ? key : ResultCache.transposedKey(key),
+                    node.getStorage());
+        }
+    }
+
+    /**
+     * Records the parent of every node that has exactly one parent edge.
+     */
+    private void findSoleParents(ComputationNode node, Set<ComputationNode> shared) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            if (shared.contains(child)) {
+                continue;
+            }
+            if (soleParents.containsKey(child)) {
+                soleParents.remove(child);
+                shared.add(child);
+                continue;
+            }
+            soleParents.put(child, node);
+            findSoleParents(child, shared);
+        }
+    }
+
+    /**
+     * Returns the chain of row-local operators that starts at a resolvable node and climbs through
+     * parents whose other operands are resolved, bottom first (see RowPipeline).
+     * A chain of a single node, or one too small to leave the calling thread, is computed as usual.
+     */
+    private List<ComputationNode> rowPipelineFrom(ComputationNode bottom) {
+        List<ComputationNode> stages = new ArrayList<>();
+        stages.add(bottom);
+        VectorOrientation layout = rowLocalLayout(bottom, null, null);
+        if (layout == null) {
+            return stages;
+        }
+        long flops = estimateFlops(bottom);
+        ComputationNode node = bottom;
+        while (true) {
+            ComputationNode parent = soleParents.get(node);
+            if (parent == null || parent.getNodeType() == ComputationNodeType.MATRIX) {
+                break;
+            }
+            boolean othersResolved = true;
+            for (ComputationNode child : parent.getChildren()) {
+                if (child != node && child.getNodeType() != ComputationNodeType.MATRIX) {
+                    othersResolved = false;
+                }
+            }
+            if (!othersResolved || rowLocalLayout(parent, node, layout) != layout) {
+                break;
+            }
+            flops += estimateFlops(parent);
+            stages.add(parent);
+            node = parent;
+        }
+        return flops < getInlineThreshold() ? stages.subList(0, 1) : stages;
+    }
+
+    /**
+     * Returns the storage layout in which a node can be computed row by row from the rows of piped
+     * (stored in pipedLayout), or from its resolved operands if piped is null; null if it cannot.
+     */
+    private VectorOrientation rowLocalLayout(ComputationNode node, ComputationNode piped, VectorOrientation pipedLayout) {
+        List<ComputationNode> children = node.getChildren();
+        switch (node.getNodeType()) {
+            case ADD:
+                return piped == null || pipedLayout == layoutOf(node) ? layoutOf(node) : null;
+            case NEGATE:
+                return children.size() != 1 ? null : piped == null ? children.get(0).getLayout() : pipedLayout;
+            case FUSED:
+                if (piped != null && (pipedLayout != layoutOf(node) || ElementwiseKernel.readsTransposed(node, piped))) {
+                    return null;
+                }
+                return layoutOf(node);
+            case MULTIPLY: {
+                // Rows of a product need whole columns of the right operand, so only the left one can be piped
+                if (children.size() != 2 || layoutOf(node) != VectorOrientation.ROW_MAJOR
+                        || (piped != null && children.get(0) != piped)) {
+                    return null;
+                }
+                int[] shape = node.getShape();
+                int inner = children.get(0).getShape()[1];
+                boolean splitK = MultiplyTiling.splitCount(shape[0], shape[1], inner, executor.getWorkerCount()) > 1;
+                return splitK ? null : VectorOrientation.ROW_MAJOR;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Runs a chain of row-local stages by bands of rows; with streamed, the rows of the top stage,
+     * which is the row-major root, are handed to rootRows as their bands finish.
+     */
+    private void computePipeline(List<ComputationNode> stages, boolean streamed) {
+        // Every stage of the chain has the layout of the bottom one
+        VectorOrientation layout = rowLocalLayout(stages.get(0), null, null);
+        RowPipeline pipeline = new RowPipeline(stages, layout, cacheKeys::containsKey);
+        int rows = pipeline.getRowCount();
+        if (rows > 0) {
+            long flopsPerRow = 0;
+            for (ComputationNode stage : stages) {
+                flopsPerRow += estimateFlops(stage) / rows;
+            }
+            // Bands are sized like the tiles of a one-column product with the same work per row
+            int bandRows = MultiplyTiling.plan(rows, 1, (int) Math.min(Integer.MAX_VALUE, Math.max(1, flopsPerRow / 2)),
+                    executor.getWorkerCount(),
+                    executor.getAverageTaskOverhead(MultiplyTiling.DEFAULT_TASK_OVERHEAD_NANOS)).getTileRows();
+            List<Runnable> tasks = pipeline.createTasks(bandRows);
+            if (streamed) {
+                rootRows.track(pipeline.getTopRows());
+                for (int t = 0; t < tasks.size(); t++) {
+                    tasks.set(t, rootRows.reporting(tasks.get(t), t * bandRows, Math.min(rows, (t + 1) * bandRows)));
+                }
+            }
+            // A failed band is rethrown here, before the root is resolved and written
+            executor.submitAll(tasks);
+        }
+        pipeline.resolve();
+    }
+
+    /**
+     * Resolves the topmost cached subtrees, looking up each shared node once.
+     */
+    private void resolveCached(ComputationNode node, Set<ComputationNode> visited) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX || !visited.add(node)) {
+            return;
+        }
+        String key = cacheKeys.get(node);
+        if (key != null) {
+            // Look for the result in the layout it would have been computed in
+            VectorOrientation layout = layoutOf(node);
+            double[][] cached = cache.get(layout == VectorOrientation.ROW_MAJOR ? key : ResultCache.transposedKey(key));
+            if (cached != null) {
+                node.resolve(cached, layout);
+                return;
+            }
+        }
+        for (ComputationNode child : node.getChildren()) {
+            resolveCached(child, visited);
+        }
     }
 
     public void loadAndCompute(ComputationNode node) {
         // TODO: load operand matrices
         // TODO: create compute tasks & submit tasks to executor
+        if (node.getNodeType() == ComputationNodeType.TRANSPOSE && node.getChildren().size() == 1) {
+            // The storage of A read in the other layout is T(A), so a transpose never moves any data
+            ComputationNode child = node.getChildren().get(0);
+            node.resolve(child.getStorage(), LayoutPlanner.flip(child.getLayout()));
+            return;
+        }
+        if (estimateFlops(node) < getInlineThreshold() && computeInline(node)) {
+            return;
+        }
+        VectorOrientation layout = layoutOf(node);
+        if (node.getNodeType() == ComputationNodeType.ADD) {
+            // Sums stream every operand once per row, without loading them into shared memory
+            double[][] result = new double[storageShape(node.getShape(), layout)[0]][];
+            List<Runnable> tasks = createFusedAddTasks(node, result, layout);
+            if (!tasks.isEmpty()) executor.submitAll(tasks);
+            node.resolve(result, layout);
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.FUSED) {
+            double[][] result = new double[storageShape(node.getShape(), layout)[0]][];
+            List<Runnable> tasks = createFusedTasks(node, result, layout);
+            if (!tasks.isEmpty()) executor.submitAll(tasks);
+            node.resolve(result, layout);
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.POWER) {
+            node.resolve(power(node, false));
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.SOLVE) {
+            node.resolve(solve(node, false));
+            return;
+        }
+
         // 1. Load operand matrices into shared memory
         for (int i = 0; i < node.getChildren().size(); i++) {
             ComputationNode child = node.getChildren().get(i);
-            double[][] childMatrix = child.getMatrix();
 
             if (i == 0) {
-                // Left matrix is always loaded in Row-Major order
-                leftMatrix.loadRowMajor(childMatrix);
+                if (node.getNodeType() == ComputationNodeType.MULTIPLY) {
+                    // Left matrix of a product is always loaded in Row-Major order
+                    leftMatrix.loadRowMajor(child.getMatrix());
+                } else {
+                    // Negation does not care about the order, so the operand keeps its own layout
+                    leftMatrix.loadRowMajor(child.getStorage());
+                    layout = child.getLayout();
+                }
             } 
             else if (i == 1) {
-                if (node.getNodeType() == ComputationNodeType.MULTIPLY) {
-                    rightMatrix.loadColumnMajor(childMatrix);
+                if (node.getNodeType() != ComputationNodeType.MULTIPLY) {
+                    rightMatrix.loadRowMajor(child.getMatrix());
+                } else if (child.getLayout() == VectorOrientation.COLUMN_MAJOR) {
+                    // Already stored by columns: no transpose copy
+                    rightMatrix.loadColumnVectors(child.getStorage());
                 } else {
-                    rightMatrix.loadRowMajor(childMatrix);
+                    rightMatrix.loadColumnMajor(child.getStorage());
                 }
             }
         }
 
         // 2. Create computation tasks based on the operator
         List<Runnable> tasks = null;
-        if (node.getNodeType() == ComputationNodeType.ADD) {
-            tasks = createAddTasks();
-        }
-        else if (node.getNodeType() == ComputationNodeType.NEGATE) {
+        double[][] result = null; // set by kernels that write a new matrix instead of updating leftMatrix
+        double[][][] partials = null; // split-K partial products, partials[0] is the result
+        if (node.getNodeType() == ComputationNodeType.NEGATE) {
             tasks = createNegateTasks();
         }
         else if (node.getNodeType() == ComputationNodeType.MULTIPLY) {
-            tasks = createMultiplyTasks();
-        }
-        else if (node.getNodeType() == ComputationNodeType.TRANSPOSE) {
-            tasks = createTransposeTasks();
+            int inner = leftMatrix.length() == 0 ? 0 : leftMatrix.get(0).length();
+            int[] shape = storageShape(new int[] { leftMatrix.length(), rightMatrix.length() }, layout);
+            partials = new double[MultiplyTiling.splitCount(leftMatrix.length(), rightMatrix.length(), inner,
+                    executor.getWorkerCount())][shape[0]][];
+            result = partials[0];
+            tasks = createTiledMultiplyTasks(partials, layout);
         }
 
         // 3. Submit tasks to the thread pool and wait for completion
         if (tasks != null && !tasks.isEmpty()) executor.submitAll(tasks);
+        if (partials != null && partials.length > 1) reducePartials(partials);
         
         // 4. Retrieve the result and resolve the current node
-        node.resolve(leftMatrix.readRowMajor());
+        node.resolve(result != null ? result : leftMatrix.readRowMajor(), layout);
+    }
+
+    /**
+     * Returns the layout planned for a node, row-major for nodes created after planning.
+     */
+    private VectorOrientation layoutOf(ComputationNode node) {
+        return plannedLayouts.getOrDefault(node, VectorOrientation.ROW_MAJOR);
+    }
+
+    static int[] storageShape(int[] shape, VectorOrientation layout) {
+        return layout == VectorOrientation.ROW_MAJOR ? shape : new int[] { shape[1], shape[0] };
+    }
+
+    /**
+     * Returns the operand's matrix stored in the given layout, converting it only if it is stored the other way.
+     */
+    static double[][] storageIn(ComputationNode operand, VectorOrientation layout) {
+        if (operand.getLayout() == layout) {
+            return operand.getStorage();
+        }
+        return layout == VectorOrientation.ROW_MAJOR ? operand.getMatrix() : InlineKernels.transpose(operand.getStorage());
     }
     
+    /**
+     * Estimates the floating-point operations needed to compute a node whose children are resolved.
+     */
+    private long estimateFlops(ComputationNode node) {
+        int[] shape = node.getShape();
+        long elements = (long) shape[0] * shape[1];
+        switch (node.getNodeType()) {
+            case MULTIPLY:
+                return 2 * elements * node.getChildren().get(0).getShape()[1];
+            case POWER:
+                return 2 * elements * shape[1] * MatrixPower.multiplyCount(node.getExponent());
+            case SOLVE: {
+                long n = shape[0];
+                return 2 * n * n * n / 3 + 2 * n * elements;
+            }
+            case ADD:
+            case FUSED:
+                return elements * node.getChildren().size();
+            default:
+                return elements;
+        }
+    }
+
+    /**
+     * Computes a small operator on the calling thread, skipping the executor and the shared-memory loads.
+     * Returns false if the operator has to run on the executor instead.
+     */
+    private boolean computeInline(ComputationNode node) {
+        List<ComputationNode> children = node.getChildren();
+        VectorOrientation layout = layoutOf(node);
+        int[] shape = storageShape(node.getShape(), layout);
+        double[][] result;
+        switch (node.getNodeType()) {
+            case ADD: {
+                double[][][] operands = new double[children.size()][][];
+                boolean[] negated = new boolean[operands.length];
+                for (int k = 0; k < negated.length; k++) {
+                    operands[k] = storageIn(children.get(k), layout);
+                    negated[k] = node.isOperandNegated(k);
+                }
+                result = InlineKernels.add(operands, negated, shape[0], shape[1]);
+                break;
+            }
+            case NEGATE:
+                layout = children.get(0).getLayout();
+                result = InlineKernels.negate(children.get(0).getStorage());
+                break;
+            case FUSED: {
+                double[][][] operands = new double[children.size()][][];
+                VectorOrientation[] operandLayouts = new VectorOrientation[operands.length];
+                for (int k = 0; k < operands.length; k++) {
+                    operands[k] = children.get(k).getStorage();
+                    operandLayouts[k] = children.get(k).getLayout();
+                }
+                ElementwiseKernel kernel = ElementwiseKernel.compile(node, operandLayouts, layout);
+                result = InlineKernels.fused(kernel, operands, shape[0], shape[1]);
+                break;
+            }
+            case MULTIPLY: {
+                if (children.size() != 2) {
+                    return false;
+                }
+                int inner = children.get(0).getShape()[1];
+                int[] outputShape = node.getShape();
+                // Split-K products sum in a different order, so they always take the same (parallel) path
+                if (MultiplyTiling.splitCount(outputShape[0], outputShape[1], inner, executor.getWorkerCount()) > 1) {
+                    return false;
+                }
+                // The left operand first: converting it changes the layout of a right operand that is the same node
+                double[][] left = children.get(0).getMatrix();
+                ComputationNode right = children.get(1);
+                result = right.getLayout() == VectorOrientation.COLUMN_MAJOR
+                        ? InlineKernels.multiplyColumns(left, right.getStorage())
+                        : InlineKernels.multiply(left, right.getStorage());
+                // Small enough that producing it row-major and letting the consumer convert is cheaper than planning
+                layout = VectorOrientation.ROW_MAJOR;
+                break;
+            }
+            case POWER:
+                result = power(node, true);
+                layout = VectorOrientation.ROW_MAJOR;
+                break;
+            case SOLVE:
+                result = solve(node, true);
+                layout = VectorOrientation.ROW_MAJOR;
+                break;
+            default:
+                return false;
+        }
+        node.resolve(result, layout);
+        return true;
+    }
+
+    /**
+     * Computes A^k one product per step, each step waiting for the previous one.
+     */
+    private double[][] power(ComputationNode node, boolean inline) {
+        int n = node.getShape()[0];
+        MultiplyTiling tiling = MultiplyTiling.plan(n, n, n, inline ? 1 : executor.getWorkerCount(),
+                executor.getAverageTaskOverhead(MultiplyTiling.DEFAULT_TASK_OVERHEAD_NANOS));
+        MatrixPower power = new MatrixPower(node.getChildren().get(0).getMatrix(), node.getExponent());
+        while (power.hasNextStep()) {
+            runTasks(power.nextStep(tiling), inline);
+        }
+        return power.getResult();
+    }
+
+    /**
+     * Solves A X = B by LU factorization, one panel per step, then all columns of B at once.
+     */
+    private double[][] solve(ComputationNode node, boolean inline) {
+        int workers = inline ? 1 : executor.getWorkerCount();
+        long overhead = executor.getAverageTaskOverhead(MultiplyTiling.DEFAULT_TASK_OVERHEAD_NANOS);
+        BlockedLU lu = new BlockedLU(node.getChildren().get(0).getMatrix());
+        while (lu.hasNextStep()) {
+            runTasks(lu.nextStep(workers, overhead), inline);
+        }
+        double[][] rhs = node.getChildren().get(1).getMatrix();
+        double[][] result = new double[rhs.length][];
+        runTasks(lu.createSolveTasks(rhs, result, workers, overhead), inline);
+        return result;
+    }
+
+    private void runTasks(List<Runnable> tasks, boolean inline) {
+        if (inline) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        } else if (!tasks.isEmpty()) {
+            executor.submitAll(tasks);
+        }
+    }
+
     public List<Runnable> createAddTasks() {
         // TODO: return tasks that perform row-wise addition
         List<Runnable> tasks = new java.util.ArrayList<>();
 
         // 1. Validation: Check if matrices have compatible dimensions and orientation
-        if (leftMatrix.length() != rightMatrix.length()) {
-            throw new IllegalArgumentException("Matrix row count mismatch");
-        }
-        
-        if (leftMatrix.length() > 0) {
-            if (leftMatrix.get(0).getOrientation() != rightMatrix.get(0).getOrientation()) {
-                throw new IllegalArgumentException("Orientation mismatch: Both matrices must have the same orientation");
-            }
-            if (leftMatrix.get(0).length() != rightMatrix.get(0).length()) {
-                throw new IllegalArgumentException("Matrix column count mismatch");
-            }
-        }
+        validateElementwiseOperands();
 
         // 2. Task Creation: Create a task for each vector (row/column)
         for (int i = 0; i < leftMatrix.length(); i++) {
@@ -146,6 +816,101 @@ public class LinearAlgebraEngine {
         return tasks;
     }
 
+    /**
+     * Creates tasks that sum all operands of an ADD node in a single pass.
+     * Each task reads row i of every operand once, applies its sign and writes row i of the result once,
+     * so a k-operand sum costs one read of each operand instead of k - 1 binary additions.
+     * Operand matrices are resolved and never modified, so no locking is needed.
+     * The result is written in the given layout; addition works the same on rows and on columns,
+     * so operands stored in that layout are streamed as they are.
+     */
+    public List<Runnable> createFusedAddTasks(ComputationNode node, double[][] result, VectorOrientation layout) {
+        List<Runnable> tasks = new ArrayList<>();
+        int operandCount = node.getChildren().size();
+        double[][][] operands = new double[operandCount][][];
+        boolean[] negated = new boolean[operandCount];
+
+        // 1. Validation: getShape() checks that all operands have the same shape
+        int[] shape = storageShape(node.getShape(), layout);
+        for (int k = 0; k < operandCount; k++) {
+            operands[k] = storageIn(node.getChildren().get(k), layout);
+            negated[k] = node.isOperandNegated(k);
+        }
+
+        // 2. Task Creation: One task per result row
+        for (int i = 0; i < shape[0]; i++) {
+            final int rowIndex = i;
+
+            Runnable task = () -> {
+                double[] sum = new double[shape[1]];
+                for (int k = 0; k < operandCount; k++) {
+                    double[] row = operands[k][rowIndex];
+                    if (negated[k]) {
+                        for (int j = 0; j < sum.length; j++) {
+                            sum[j] -= row[j];
+                        }
+                    } else {
+                        for (int j = 0; j < sum.length; j++) {
+                            sum[j] += row[j];
+                        }
+                    }
+                }
+                // Each task writes a distinct row, so the result array needs no locking
+                result[rowIndex] = sum;
+            };
+
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * Creates tasks that evaluate a FUSED node band by band with the row kernel of its expression,
+     * writing result in the given layout. Operands are read in whatever layout they are stored in,
+     * the kernel swaps its loads accordingly.
+     */
+    public List<Runnable> createFusedTasks(ComputationNode node, double[][] result, VectorOrientation layout) {
+        List<Runnable> tasks = new ArrayList<>();
+        int[] shape = storageShape(node.getShape(), layout);
+        double[][][] operands = new double[node.getChildren().size()][][];
+        VectorOrientation[] operandLayouts = new VectorOrientation[operands.length];
+        for (int k = 0; k < operands.length; k++) {
+            operands[k] = node.getChildren().get(k).getStorage();
+            operandLayouts[k] = node.getChildren().get(k).getLayout();
+        }
+        ElementwiseKernel kernel = ElementwiseKernel.compile(node, operandLayouts, layout);
+
+        // One task per band of rows, which the kernel computes together
+        for (int i = 0; i < shape[0]; i += ElementwiseKernel.BAND_ROWS) {
+            final int rowStart = i;
+            final int rowEnd = Math.min(shape[0], i + ElementwiseKernel.BAND_ROWS);
+            Runnable task = () -> {
+                for (int r = rowStart; r < rowEnd; r++) {
+                    result[r] = new double[shape[1]];
+                }
+                // Each task writes distinct rows, so the result array needs no locking
+                kernel.computeRows(operands, rowStart, rowEnd, result);
+            };
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private void validateElementwiseOperands() {
+        if (leftMatrix.length() != rightMatrix.length()) {
+            throw new IllegalArgumentException("Matrix row count mismatch");
+        }
+
+        if (leftMatrix.length() > 0) {
+            if (leftMatrix.get(0).getOrientation() != rightMatrix.get(0).getOrientation()) {
+                throw new IllegalArgumentException("Orientation mismatch: Both matrices must have the same orientation");
+            }
+            if (leftMatrix.get(0).length() != rightMatrix.get(0).length()) {
+                throw new IllegalArgumentException("Matrix column count mismatch");
+            }
+        }
+    }
+
     public List<Runnable> createMultiplyTasks() {
         // TODO: return tasks that perform row × matrix multiplication
         List<Runnable> tasks = new java.util.ArrayList<>();
@@ -197,6 +962,100 @@ public class LinearAlgebraEngine {
         return tasks;
     }
 
+    /**
+     * Creates tasks that each compute one rectangular tile of leftMatrix * rightMatrix, over one chunk of
+     * the inner dimension. With a single chunk the tile is written straight to partials[0]; with several
+     * (split-K), chunk s is written to partials[s] and reducePartials must combine them afterwards.
+     * rightMatrix must be loaded column-major. With a COLUMN_MAJOR layout the partials are written
+     * column by column (partial[j][i]), so a consumer that reads the product by columns needs no transpose.
+     * The tile size is chosen by MultiplyTiling from the shapes, the worker count and the per-task overhead
+     * measured by the workers.
+     */
+    public List<Runnable> createTiledMultiplyTasks(double[][][] partials, VectorOrientation layout) {
+        List<Runnable> tasks = new ArrayList<>();
+        int rows = leftMatrix.length();
+        int cols = rightMatrix.length();
+        if (rows > 0 && cols > 0 && leftMatrix.get(0).length() != rightMatrix.get(0).length()) {
+            throw new IllegalArgumentException("Matrix dimension mismatch: Inner dimensions must agree.");
+        }
+        boolean columnMajor = layout == VectorOrientation.COLUMN_MAJOR;
+        for (double[][] partial : partials) {
+            for (int v = 0; v < partial.length; v++) {
+                partial[v] = new double[columnMajor ? rows : cols];
+            }
+        }
+        if (rows == 0 || cols == 0) return tasks;
+
+        int inner = leftMatrix.get(0).length();
+        int splits = partials.length;
+        int chunk = (inner + splits - 1) / splits;
+        MultiplyTiling tiling = MultiplyTiling.plan(rows, cols, chunk, (executor.getWorkerCount() + splits - 1) / splits,
+                executor.getAverageTaskOverhead(MultiplyTiling.DEFAULT_TASK_OVERHEAD_NANOS));
+
+        for (int s = 0; s < splits; s++) {
+            for (int r = 0; r < rows; r += tiling.getTileRows()) {
+                for (int c = 0; c < cols; c += tiling.getTileCols()) {
+                    final double[][] partial = partials[s];
+                    final int innerStart = Math.min(inner, s * chunk);
+                    final int innerEnd = Math.min(inner, innerStart + chunk);
+                    final int rowStart = r;
+                    final int rowEnd = Math.min(rows, r + tiling.getTileRows());
+                    final int colStart = c;
+                    final int colEnd = Math.min(cols, c + tiling.getTileCols());
+
+                    Runnable task = () -> {
+                        // Read locks are taken once per tile, not once per element
+                        for (int i = rowStart; i < rowEnd; i++) leftMatrix.get(i).readLock();
+                        for (int j = colStart; j < colEnd; j++) rightMatrix.get(j).readLock();
+                        try {
+                            // Each task writes a distinct range of its partial, so no locking is needed
+                            if (columnMajor) {
+                                for (int j = colStart; j < colEnd; j++) {
+                                    SharedVector column = rightMatrix.get(j);
+                                    double[] out = partial[j];
+                                    for (int i = rowStart; i < rowEnd; i++) {
+                                        out[i] = leftMatrix.get(i).dot(column, innerStart, innerEnd);
+                                    }
+                                }
+                            } else {
+                                for (int i = rowStart; i < rowEnd; i++) {
+                                    SharedVector row = leftMatrix.get(i);
+                                    double[] out = partial[i];
+                                    for (int j = colStart; j < colEnd; j++) {
+                                        out[j] = row.dot(rightMatrix.get(j), innerStart, innerEnd);
+                                    }
+                                }
+                            }
+                        } finally {
+                            for (int j = colStart; j < colEnd; j++) rightMatrix.get(j).readUnlock();
+                            for (int i = rowStart; i < rowEnd; i++) leftMatrix.get(i).readUnlock();
+                        }
+                    };
+                    tasks.add(task);
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Sums split-K partial products into partials[0] with a pairwise tree reduction.
+     * The pairing only depends on the number of chunks, so the floating-point result is reproducible.
+     */
+    private void reducePartials(double[][][] partials) {
+        for (int step = 1; step < partials.length; step *= 2) {
+            for (int s = 0; s + step < partials.length; s += 2 * step) {
+                double[][] into = partials[s];
+                double[][] from = partials[s + step];
+                for (int i = 0; i < into.length; i++) {
+                    for (int j = 0; j < into[i].length; j++) {
+                        into[i][j] += from[i][j];
+                    }
+                }
+            }
+        }
+    }
+
     public List<Runnable> createNegateTasks() {
         // TODO: return tasks that negate rows
         List<Runnable> tasks = new java.util.ArrayList<>();
@@ -1,5 +1,6 @@
 package spl.lae;
 import java.io.IOException;
+import java.util.Arrays;
 
 import parser.ComputationNode;
 import parser.OutputWriter;
@@ -12,19 +13,35 @@ public class Main {
       ComputationNode answerNode = null;
       OutputWriter outputWriter = new OutputWriter();
       parser.InputParser parserworker = new parser.InputParser();
-      try { 
+      // Compact output is opt-in: the result is streamed row by row as single-line JSON
+      boolean compact = Arrays.asList(args).contains("--compact");
+      try {
           parser.ComputationNode root = parserworker.parse("example.json");
-          answerNode = engine.run(root);
+          if (compact) {
+              // Rows are written as the engine finishes them
+              try (OutputWriter.RowStream rows = OutputWriter.openCompact("output.json")) {
+                  engine.run(root, rows);
+              } catch (RuntimeException e) {
+                  OutputWriter.writeCompact("Error computing result: " + e.getMessage(), "output.json");
+                  throw e;
+              }
+          } else {
+              answerNode = engine.run(root);
+          }
           System.out.println(engine.getWorkerReport());
       } catch (java.text.ParseException e) {
 
-          outputWriter.write("Error parsing input: " + e.getMessage(), "output.json");
-      }   
+          if (compact) {
+              OutputWriter.writeCompact("Error parsing input: " + e.getMessage(), "output.json");
+          } else {
+              outputWriter.write("Error parsing input: " + e.getMessage(), "output.json");
+          }
+      }
 
       if (answerNode != null) {
             double[][] answerMatrix = answerNode.getMatrix();
             outputWriter.write(answerMatrix, "output.json");
       }
-  
+
     }
-} 
\ No newline at end of file
+}
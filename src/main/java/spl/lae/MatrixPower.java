@@ -0,0 +1,166 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes A^k by repeated squaring: the exponent is read from its lowest bit up, squaring A once per bit
+ * and multiplying the squares of the set bits into the result, so A^k takes floor(log2 k) + popcount(k) - 1
+ * products instead of k - 1.
+ * Each product is one step whose tasks compute one tile of the output; the caller runs the tasks of a step
+ * (in parallel or not) before asking for the next one.
+ * Products are written into buffers that are reused once the square or partial result they held is replaced,
+ * so at most three n x n buffers and one transposed copy of the right operand are allocated, whatever k is.
+ * Every output element sums its n terms from first to last, like SharedVector.dot.
+ */
+public class MatrixPower {
+
+    private final int n;
+    private final List<double[][]> buffers = new ArrayList<>(); // allocated by this power, reused between products
+    private double[][] columns = null; // right operand of the current product, column by column
+    private double[][] square; // A^(2^i) for the bit being read, A itself is never written
+    private double[][] result = null; // product of the squares of the bits read so far, null for the identity
+    private int remaining; // bits of the exponent not read yet
+    private double[][] pending = null; // output of the current step, committed by the next call
+    private boolean pendingSquare;
+    private int multiplyCount = 0;
+
+    public MatrixPower(double[][] base, int exponent) {
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Exponent must be non-negative");
+        }
+        this.n = base.length;
+        this.square = base;
+        this.remaining = exponent;
+    }
+
+    /**
+     * Number of products needed for A^exponent.
+     */
+    public static int multiplyCount(int exponent) {
+        return exponent <= 1 ? 0 : 31 - Integer.numberOfLeadingZeros(exponent) + Integer.bitCount(exponent) - 1;
+    }
+
+    /**
+     * Upper bound on the n x n matrices allocated to compute A^exponent, the result included.
+     */
+    public static int bufferCount(int exponent) {
+        return exponent == 0 ? 1 : exponent == 1 ? 0 : exponent == 2 ? 2 : 4;
+    }
+
+    /**
+     * Returns true while a product is left to compute.
+     */
+    public boolean hasNextStep() {
+        commit();
+        advance();
+        return remaining > 0;
+    }
+
+    /**
+     * Prepares the next product and returns one task per tile of its output.
+     */
+    public List<Runnable> nextStep(MultiplyTiling tiling) {
+        if (!hasNextStep()) {
+            throw new IllegalStateException("No product left to compute");
+        }
+        // A set low bit is multiplied into the result; once it is clear, the square is squared for the next bit
+        boolean squaring = (remaining & 1) == 0;
+        double[][] left = squaring ? square : result;
+        double[][] out = freeBuffer();
+        if (columns == null) {
+            columns = new double[n][n];
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                columns[j][i] = square[i][j];
+            }
+        }
+        pending = out;
+        pendingSquare = squaring;
+        multiplyCount++;
+
+        List<Runnable> tasks = new ArrayList<>();
+        final double[][] right = columns;
+        for (int r = 0; r < n; r += tiling.getTileRows()) {
+            for (int c = 0; c < n; c += tiling.getTileCols()) {
+                final int rowStart = r;
+                final int rowEnd = Math.min(n, r + tiling.getTileRows());
+                final int colStart = c;
+                final int colEnd = Math.min(n, c + tiling.getTileCols());
+                // Each task writes a distinct tile of out, and the operands are not written during a step
+                tasks.add(() -> {
+                    for (int i = rowStart; i < rowEnd; i++) {
+                        double[] a = left[i];
+                        double[] row = out[i];
+                        for (int j = colStart; j < colEnd; j++) {
+                            double[] b = right[j];
+                            double sum = 0;
+                            for (int t = 0; t < n; t++) {
+                                sum += a[t] * b[t];
+                            }
+                            row[j] = sum;
+                        }
+                    }
+                });
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Returns A^k once every step has run. The matrix is the input itself for k = 1.
+     */
+    public double[][] getResult() {
+        if (hasNextStep()) {
+            throw new IllegalStateException("Not every product has been computed");
+        }
+        if (result == null) {
+            double[][] identity = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                identity[i][i] = 1;
+            }
+            return identity;
+        }
+        return result;
+    }
+
+    public int getMultiplyCount() {
+        return multiplyCount;
+    }
+
+    private void commit() {
+        if (pending == null) {
+            return;
+        }
+        if (pendingSquare) {
+            square = pending;
+            remaining >>>= 1;
+        } else {
+            result = pending;
+            remaining &= ~1;
+        }
+        pending = null;
+    }
+
+    /**
+     * Reads a set bit that needs no product: while the result is still the identity it takes the square as it is.
+     */
+    private void advance() {
+        if ((remaining & 1) == 1 && result == null) {
+            result = square;
+            remaining &= ~1;
+        }
+    }
+
+    private double[][] freeBuffer() {
+        for (double[][] buffer : buffers) {
+            if (buffer != square && buffer != result) {
+                return buffer;
+            }
+        }
+        double[][] buffer = new double[n][n];
+        buffers.add(buffer);
+        return buffer;
+    }
+}
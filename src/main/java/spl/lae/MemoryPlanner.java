@@ -0,0 +1,361 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.MatrixSource;
+
+/**
+ * Chooses the order in which operator nodes are evaluated so that few intermediate results are alive at once,
+ * and tracks how many bytes of intermediate results are actually alive while the engine runs.
+ *
+ * The order generalizes Sethi-Ullman register allocation to matrices: evaluating an operand needs
+ * need(operand) bytes at its peak and then holds out(operand) bytes until its consumer is computed,
+ * so operands are evaluated in decreasing order of need - out, which is optimal for independent subtrees.
+ * Sizes are inferred from the operand shapes before anything is computed.
+ * Input matrices are not counted, they are alive for the whole run either way. A TRANSPOSE allocates nothing,
+ * its result is a relabelling of its operand's storage.
+ * An intermediate result is discarded once its last consumer is computed, so that the heap can reclaim it.
+ * The predicted peak simulates the chosen order with the inferred sizes; the accounted peak replays
+ * the same accounting on the matrices the engine really produced, which can be lower, e.g. when
+ * a pipelined chain never materializes its intermediate rows. Neither is a measurement of the heap.
+ */
+public class MemoryPlanner {
+
+    private final Map<ComputationNode, Long> need = new IdentityHashMap<>();
+    private final Map<ComputationNode, Integer> consumers = new IdentityHashMap<>();
+    private final List<ComputationNode> schedule = new ArrayList<>();
+    private final Map<ComputationNode, Integer> schedulePositions = new IdentityHashMap<>();
+    private final Map<ComputationNode, List<ComputationNode>> parents = new IdentityHashMap<>();
+    private long predictedPeak = 0;
+
+    // Accounting of the real results, by storage array: an array may be held by several nodes (e.g. A and T(A))
+    private final Set<double[][]> inputs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<ComputationNode> unloadedInputs = new ArrayList<>(); // leaves loaded on first use
+    private final Map<ComputationNode, double[][]> heldArrays = new IdentityHashMap<>();
+    private final Map<double[][], Integer> arrayHolders = new IdentityHashMap<>();
+    private final Set<ComputationNode> spilled = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long liveBytes = 0;
+    private long accountedPeak = 0;
+
+    /**
+     * Plans the evaluation order of every unresolved operator node under root, operands before consumers.
+     */
+    public List<ComputationNode> plan(ComputationNode root) {
+        need.clear();
+        consumers.clear();
+        schedule.clear();
+        schedulePositions.clear();
+        parents.clear();
+        countConsumers(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+        needOf(root);
+        schedule(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+        for (int i = 0; i < schedule.size(); i++) {
+            schedulePositions.put(schedule.get(i), i);
+        }
+        predictedPeak = simulate();
+        return schedule;
+    }
+
+    public long getPredictedPeak() {
+        return predictedPeak;
+    }
+
+    public long getAccountedPeak() {
+        return accountedPeak;
+    }
+
+    private void countConsumers(ComputationNode node, Set<ComputationNode> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            if (node.isResident()) {
+                inputs.add(node.getStorage());
+            } else {
+                unloadedInputs.add(node);
+            }
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            consumers.merge(child, 1, Integer::sum);
+            parents.computeIfAbsent(child, c -> new ArrayList<>()).add(node);
+            countConsumers(child, visited);
+        }
+    }
+
+    /**
+     * Bytes newly allocated to compute a node once its operands are available.
+     * A product of more than two factors is nested, so two consecutive partial products are alive at its peak,
+     * a power keeps the result so far, the current square and the product being written (see MatrixPower),
+     * and a solve keeps the LU factors of its matrix.
+     */
+    private static long allocatedBy(ComputationNode node) {
+        switch (node.getNodeType()) {
+            case MATRIX:
+            case TRANSPOSE:
+                return 0;
+            case MULTIPLY: {
+                List<ComputationNode> children = node.getChildren();
+                int rows = children.get(0).getShape()[0];
+                long previous = 0;
+                long peak = 0;
+                for (int i = 1; i < children.size(); i++) {
+                    long product = 8L * rows * children.get(i).getShape()[1];
+                    peak = Math.max(peak, previous + product);
+                    previous = product;
+                }
+                return peak;
+            }
+            case POWER: {
+                int n = node.getShape()[0];
+                return 8L * n * n * MatrixPower.bufferCount(node.getExponent());
+            }
+            case SOLVE: {
+                // The factors are a copy of the matrix, alive next to the solution
+                int n = node.getShape()[0];
+                return 8L * n * (n + node.getShape()[1]);
+            }
+            default: {
+                int[] shape = node.getShape();
+                return 8L * shape[0] * shape[1];
+            }
+        }
+    }
+
+    /**
+     * Bytes a node's result holds until its last consumer is computed.
+     */
+    private static long outOf(ComputationNode node) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            return 0;
+        }
+        if (node.getNodeType() == ComputationNodeType.TRANSPOSE) {
+            return outOf(node.getChildren().get(0));
+        }
+        int[] shape = node.getShape();
+        return 8L * shape[0] * shape[1];
+    }
+
+    /**
+     * Peak bytes needed to evaluate a subtree, with its operands in the order chosen by orderedChildren.
+     */
+    private long needOf(ComputationNode node) {
+        Long known = need.get(node);
+        if (known != null) {
+            return known;
+        }
+        long peak = 0;
+        if (node.getNodeType() != ComputationNodeType.MATRIX) {
+            long held = 0;
+            for (ComputationNode child : orderedChildren(node)) {
+                peak = Math.max(peak, held + needOf(child));
+                held += outOf(child);
+            }
+            peak = Math.max(peak, held + allocatedBy(node));
+        }
+        need.put(node, peak);
+        return peak;
+    }
+
+    private List<ComputationNode> orderedChildren(ComputationNode node) {
+        List<ComputationNode> ordered = new ArrayList<>(node.getChildren());
+        // Stable sort: operands with equal priority keep the order of the expression
+        ordered.sort(Comparator.comparingLong((ComputationNode child) -> needOf(child) - outOf(child)).reversed());
+        return ordered;
+    }
+
+    private void schedule(ComputationNode node, Set<ComputationNode> visited) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX || !visited.add(node)) {
+            return;
+        }
+        for (ComputationNode child : orderedChildren(node)) {
+            schedule(child, visited);
+        }
+        schedule.add(node);
+    }
+
+    /**
+     * Replays the schedule with the inferred sizes, freeing every result once its last consumer is computed.
+     */
+    private long simulate() {
+        Map<ComputationNode, Integer> remaining = new IdentityHashMap<>(consumers);
+        long live = 0;
+        long peak = 0;
+        for (ComputationNode node : schedule) {
+            peak = Math.max(peak, live + allocatedBy(node));
+            live += outOf(node);
+            for (ComputationNode child : node.getChildren()) {
+                if (remaining.merge(child, -1, Integer::sum) == 0) {
+                    live -= outOf(child);
+                }
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Records one evaluation step of the engine: the nodes it resolved and the operands they consumed
+     * (captured before resolving, which drops the children).
+     */
+    public void recordStep(List<ComputationNode> computed, List<ComputationNode> operands) {
+        unloadedInputs.removeIf(leaf -> {
+            if (leaf.isResident()) {
+                inputs.add(leaf.getStorage());
+                return true;
+            }
+            return false;
+        });
+        long allocated = 0;
+        for (ComputationNode node : computed) {
+            double[][] storage = node.getStorage();
+            if (!inputs.contains(storage) && !arrayHolders.containsKey(storage)) {
+                allocated += sizeOf(storage);
+            }
+        }
+        // Spilled operands were loaded back for this step
+        Set<ComputationNode> faulted = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ComputationNode operand : operands) {
+            if (spilled.contains(operand) && operand.isResident() && faulted.add(operand)) {
+                allocated += sizeOf(operand.getStorage());
+            }
+        }
+        accountedPeak = Math.max(accountedPeak, liveBytes + allocated);
+        for (ComputationNode node : computed) {
+            hold(node, node.getStorage());
+        }
+        for (ComputationNode operand : operands) {
+            // Nodes created while running (nested products) have a single consumer
+            if (consumers.merge(operand, -1, Integer::sum) <= 0) {
+                // An intermediate result nobody reads any more is dropped, so that its memory can be reclaimed
+                boolean intermediate = heldArrays.containsKey(operand) || spilled.contains(operand);
+                release(operand);
+                spilled.remove(operand);
+                faulted.remove(operand);
+                if (intermediate) {
+                    operand.discard();
+                }
+            }
+        }
+        // Operands loaded back that still have consumers stay in memory until they are spilled again
+        for (ComputationNode operand : faulted) {
+            spilled.remove(operand);
+            hold(operand, operand.getStorage());
+        }
+    }
+
+    /**
+     * Forgets the nodes and matrices of the last run, so that they are not kept reachable after it.
+     * The peaks stay available.
+     */
+    public void forgetRun() {
+        need.clear();
+        consumers.clear();
+        schedule.clear();
+        schedulePositions.clear();
+        parents.clear();
+        inputs.clear();
+        unloadedInputs.clear();
+        heldArrays.clear();
+        arrayHolders.clear();
+        spilled.clear();
+        liveBytes = 0;
+    }
+
+    /**
+     * Spills live intermediate results to store until at most budget bytes are left in memory.
+     * Like Belady's replacement policy, the results whose next consumer comes last in the schedule go first.
+     * Results that were spilled before are offloaded again without being rewritten.
+     */
+    public void enforceBudget(long budget, SpillStore store) {
+        if (liveBytes <= budget) {
+            return;
+        }
+        List<ComputationNode> candidates = new ArrayList<>();
+        for (ComputationNode node : heldArrays.keySet()) {
+            if (nextUse(node) >= 0) {
+                candidates.add(node);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(this::nextUse).reversed());
+        for (ComputationNode node : candidates) {
+            if (liveBytes <= budget) {
+                break;
+            }
+            if (heldArrays.containsKey(node)) {
+                spill(node, store);
+            }
+        }
+    }
+
+    /**
+     * Returns the schedule position of the next consumer of a node, or -1 if it has none left.
+     * Consumers created while running are not in the schedule and count as immediate.
+     */
+    private int nextUse(ComputationNode node) {
+        int next = -1;
+        for (ComputationNode parent : parents.getOrDefault(node, List.of())) {
+            if (parent.getNodeType() != ComputationNodeType.MATRIX) {
+                int position = schedulePositions.getOrDefault(parent, 0);
+                next = next < 0 ? position : Math.min(next, position);
+            }
+        }
+        if (next < 0 && consumers.getOrDefault(node, 0) > 0) {
+            next = 0;
+        }
+        return next;
+    }
+
+    private void spill(ComputationNode node, SpillStore store) {
+        double[][] storage = heldArrays.get(node);
+        // Every node holding the array is offloaded with it, otherwise no memory would be freed
+        List<ComputationNode> holders = new ArrayList<>();
+        for (Map.Entry<ComputationNode, double[][]> entry : heldArrays.entrySet()) {
+            if (entry.getValue() == storage && entry.getKey().isResident() && entry.getKey().getStorage() == storage) {
+                holders.add(entry.getKey());
+            }
+        }
+        if (holders.isEmpty()) {
+            return;
+        }
+        MatrixSource source = node.getSource() != null ? node.getSource() : store.spill(storage);
+        for (ComputationNode holder : holders) {
+            holder.offload(source);
+            release(holder);
+            spilled.add(holder);
+        }
+    }
+
+    private void hold(ComputationNode node, double[][] storage) {
+        if (inputs.contains(storage)) {
+            return;
+        }
+        heldArrays.put(node, storage);
+        if (arrayHolders.merge(storage, 1, Integer::sum) == 1) {
+            liveBytes += sizeOf(storage);
+        }
+    }
+
+    private void release(ComputationNode node) {
+        double[][] storage = heldArrays.remove(node);
+        if (storage != null && arrayHolders.merge(storage, -1, Integer::sum) == 0) {
+            arrayHolders.remove(storage);
+            liveBytes -= sizeOf(storage);
+        }
+    }
+
+    private static long sizeOf(double[][] matrix) {
+        long bytes = 0;
+        for (double[] row : matrix) {
+            bytes += 8L * row.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,98 @@
+package spl.lae;
+
+/**
+ * Partitions the output of an (m x k) * (k x n) product into rectangular tiles, one task per tile.
+ * The tile count aims at a few tasks per worker, but never so many that a task does less work than
+ * OVERHEAD_FACTOR times the measured per-task scheduling overhead.
+ * Tiles are kept close to square in the output so that each task reuses the rows and columns it loads.
+ * When the output has too few elements to keep every worker busy, the inner dimension is split as well
+ * (split-K), see splitCount.
+ */
+public class MultiplyTiling {
+
+    static final long DEFAULT_TASK_OVERHEAD_NANOS = 20_000; // used before the executor has measured anything
+    private static final double NANOS_PER_FLOP = 0.5; // rough cost of one multiply-add in the dot kernel
+    private static final int OVERHEAD_FACTOR = 10; // a task should run 10x longer than it takes to schedule
+    private static final int TASKS_PER_WORKER = 4; // slack for load balancing between tired workers
+    static final int MIN_SPLIT_CHUNK = 4096; // shortest inner range worth a partial sum of its own
+
+    private final int rows;
+    private final int cols;
+    private final int tileRows;
+    private final int tileCols;
+
+    private MultiplyTiling(int rows, int cols, int tileRows, int tileCols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.tileRows = tileRows;
+        this.tileCols = tileCols;
+    }
+
+    /**
+     * Plans the tiles of a product with the given output shape and inner dimension.
+     */
+    public static MultiplyTiling plan(int rows, int cols, int inner, int workers, long taskOverheadNanos) {
+        if (rows == 0 || cols == 0) {
+            return new MultiplyTiling(rows, cols, Math.max(rows, 1), Math.max(cols, 1));
+        }
+        double flops = 2.0 * rows * cols * Math.max(inner, 1);
+        double minFlopsPerTask = OVERHEAD_FACTOR * taskOverheadNanos / NANOS_PER_FLOP;
+        long byOverhead = Math.max(1, (long) (flops / minFlopsPerTask));
+        long byWorkers = (long) Math.max(workers, 1) * TASKS_PER_WORKER;
+        long targetTasks = Math.min(Math.min(byOverhead, byWorkers), (long) rows * cols);
+
+        // Pick the grid with the most tiles not above the target, preferring square tiles on ties
+        MultiplyTiling best = null;
+        long bestCount = 0;
+        double bestAspect = Double.MAX_VALUE;
+        for (int gridRows = 1; gridRows <= Math.min(rows, targetTasks); gridRows++) {
+            int tileRows = ceilDiv(rows, gridRows);
+            int usedRows = ceilDiv(rows, tileRows);
+            int gridCols = (int) Math.min(cols, Math.max(1, targetTasks / usedRows));
+            int tileCols = ceilDiv(cols, gridCols);
+            long count = (long) usedRows * ceilDiv(cols, tileCols);
+            double aspect = (double) Math.max(tileRows, tileCols) / Math.min(tileRows, tileCols);
+            if (count > bestCount || (count == bestCount && aspect < bestAspect)) {
+                best = new MultiplyTiling(rows, cols, tileRows, tileCols);
+                bestCount = count;
+                bestAspect = aspect;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns into how many contiguous chunks the inner dimension is split, 1 meaning no split.
+     * Tired workers run at different speeds, so each one should get about TASKS_PER_WORKER tasks. When the
+     * output has fewer elements than that, each dot product is split into enough chunks to make up the
+     * difference, as long as a chunk keeps at least MIN_SPLIT_CHUNK terms. A k x k product with a long inner
+     * dimension, such as T(X)*X for a tall X, therefore splits even when k * k is at least the worker count.
+     * The split only depends on the shapes and the worker count, never on timing measurements,
+     * so the order in which partial sums are combined, and therefore the result, is the same in every run.
+     */
+    public static int splitCount(int rows, int cols, int inner, int workers) {
+        long outputs = (long) rows * cols;
+        long targetTasks = (long) workers * TASKS_PER_WORKER;
+        if (outputs == 0 || workers <= 1 || outputs >= targetTasks) {
+            return 1;
+        }
+        long wanted = (targetTasks + outputs - 1) / outputs;
+        return (int) Math.max(1, Math.min(wanted, inner / MIN_SPLIT_CHUNK));
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    public int getTileCols() {
+        return tileCols;
+    }
+
+    public int getTileCount() {
+        return ceilDiv(rows, tileRows) * ceilDiv(cols, tileCols);
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,305 @@
+package spl.lae;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Caches resolved matrices across runs, keyed by a content hash of the subtree that produced them.
+ * Entries are evicted in least-recently-used order once their total size exceeds the byte budget.
+ * If a persistence directory is given, every entry is also written there and misses fall back to it,
+ * so results survive evictions and process restarts. Entries that fail to persist are counted, not reported.
+ * Matrices are copied when they are cached and when they are returned, so callers may modify theirs.
+ */
+public class ResultCache {
+
+    private static final String FILE_SUFFIX = ".matrix";
+
+    private final long maxBytes;
+    private final Path persistenceDir;
+    private final LinkedHashMap<String, double[][]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long persistFailures = 0;
+
+    public ResultCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    public ResultCache(long maxBytes, Path persistenceDir) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be non-negative");
+        }
+        this.maxBytes = maxBytes;
+        this.persistenceDir = persistenceDir;
+        if (persistenceDir != null) {
+            try {
+                Files.createDirectories(persistenceDir);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot create cache directory " + persistenceDir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the cached matrix for the given key, or null on a miss.
+     */
+    public synchronized double[][] get(String key) {
+        double[][] matrix = entries.get(key);
+        if (matrix == null && persistenceDir != null) {
+            matrix = readPersisted(key);
+            if (matrix != null) {
+                insert(key, matrix);
+            }
+        }
+        if (matrix == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return matrix == null ? null : copyOf(matrix);
+    }
+
+    /**
+     * Caches a copy of matrix under key. A matrix larger than the whole budget is not copied,
+     * it is only written to the persistence directory, if there is one.
+     */
+    public synchronized void put(String key, double[][] matrix) {
+        if (entries.containsKey(key)) {
+            return;
+        }
+        if (sizeOf(matrix) > maxBytes) {
+            if (persistenceDir != null) {
+                writePersisted(key, matrix);
+            }
+            return;
+        }
+        matrix = copyOf(matrix);
+        insert(key, matrix);
+        if (persistenceDir != null) {
+            writePersisted(key, matrix);
+        }
+    }
+
+    private void insert(String key, double[][] matrix) {
+        long bytes = sizeOf(matrix);
+        if (bytes > maxBytes) {
+            return;
+        }
+        entries.put(key, matrix);
+        currentBytes += bytes;
+        // Evict least recently used entries until the budget is respected
+        Iterator<Map.Entry<String, double[][]>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, double[][]> eldest = it.next();
+            currentBytes -= sizeOf(eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of entries that could not be written to the persistence directory.
+     */
+    public synchronized long getPersistFailures() {
+        return persistFailures;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized String getReport() {
+        long lookups = hits + misses;
+        return String.format("Cache: entries=%d, bytes=%d/%d, hits=%d, misses=%d, hit rate=%.2f%%, evictions=%d, persist failures=%d\n",
+                entries.size(), currentBytes, maxBytes, hits, misses,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, persistFailures);
+    }
+
+    /**
+     * Computes the content hash of every operator node under root (FUSED nodes hash their expression),
+     * so that equal subtrees get equal keys in any run. Shared subtrees are hashed once.
+     * A leaf whose source can describe it (a literal by its text, a matrix file by its attributes,
+     * a generator by its parameters) is hashed by that description, without loading it;
+     * other leaves are hashed by their elements in row-major order, whatever their storage layout.
+     */
+    public static Map<ComputationNode, String> keysOf(ComputationNode root) {
+        Map<ComputationNode, byte[]> digests = new IdentityHashMap<>();
+        digestOf(root, digests);
+        Map<ComputationNode, String> keys = new IdentityHashMap<>();
+        for (Map.Entry<ComputationNode, byte[]> entry : digests.entrySet()) {
+            if (entry.getKey().getNodeType() != ComputationNodeType.MATRIX) {
+                keys.put(entry.getKey(), HexFormat.of().formatHex(entry.getValue()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the key of T(X) given the key of X, under which a column-major result of X is cached:
+     * the column-major storage of X is exactly the row-major matrix of T(X).
+     */
+    public static String transposedKey(String key) {
+        MessageDigest sha = newDigest();
+        sha.update((byte) 'O');
+        updateInt(sha, ComputationNodeType.TRANSPOSE.ordinal());
+        updateInt(sha, 1);
+        sha.update((byte) 0);
+        sha.update(HexFormat.of().parseHex(key));
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    private static byte[] digestOf(ComputationNode node, Map<ComputationNode, byte[]> digests) {
+        byte[] digest = digests.get(node);
+        if (digest != null) {
+            return digest;
+        }
+        MessageDigest sha = newDigest();
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            int[] shape = node.getShape();
+            sha.update((byte) 'M');
+            updateInt(sha, shape[0]);
+            updateInt(sha, shape[1]);
+            if (node.getSource() == null || !node.getSource().describe(sha)) {
+                updateElements(sha, node.getStorage(), node.getLayout(), shape);
+            }
+        }
+        else if (node.getNodeType() == ComputationNodeType.FUSED) {
+            sha.update(digestOf(node.getFusedExpression(), digests));
+        }
+        else {
+            sha.update((byte) 'O');
+            updateInt(sha, node.getNodeType().ordinal());
+            if (node.getNodeType() == ComputationNodeType.POWER) {
+                updateInt(sha, node.getExponent());
+            }
+            updateInt(sha, node.getChildren().size());
+            for (int i = 0; i < node.getChildren().size(); i++) {
+                sha.update((byte) (node.isOperandNegated(i) ? 1 : 0));
+                sha.update(digestOf(node.getChildren().get(i), digests));
+            }
+        }
+        digest = sha.digest();
+        digests.put(node, digest);
+        return digest;
+    }
+
+    private static void updateElements(MessageDigest sha, double[][] storage, VectorOrientation layout, int[] shape) {
+        ByteBuffer bytes = ByteBuffer.allocate(8 * shape[1]);
+        for (int i = 0; i < shape[0]; i++) {
+            bytes.clear();
+            for (int j = 0; j < shape[1]; j++) {
+                bytes.putDouble(layout == VectorOrientation.ROW_MAJOR ? storage[i][j] : storage[j][i]);
+            }
+            sha.update(bytes.flip());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void updateInt(MessageDigest sha, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            sha.update((byte) (value >>> shift));
+        }
+    }
+
+    private static double[][] copyOf(double[][] matrix) {
+        double[][] copy = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            copy[i] = matrix[i].clone();
+        }
+        return copy;
+    }
+
+    private static long sizeOf(double[][] matrix) {
+        long bytes = 0;
+        for (double[] row : matrix) {
+            bytes += 8L * row.length;
+        }
+        return bytes;
+    }
+
+    private double[][] readPersisted(String key) {
+        Path file = persistenceDir.resolve(key + FILE_SUFFIX);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int rows = in.readInt();
+            int cols = in.readInt();
+            double[][] matrix = new double[rows][cols];
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    matrix[i][j] = in.readDouble();
+                }
+            }
+            return matrix;
+        } catch (IOException e) {
+            // A corrupt or partially written entry is treated as a miss
+            return null;
+        }
+    }
+
+    private void writePersisted(String key, double[][] matrix) {
+        Path file = persistenceDir.resolve(key + FILE_SUFFIX);
+        Path temp = persistenceDir.resolve(key + FILE_SUFFIX + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(matrix.length);
+                out.writeInt(matrix.length == 0 ? 0 : matrix[0].length);
+                for (double[] row : matrix) {
+                    for (double value : row) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The entry stays in memory; a later run recomputes it
+            persistFailures++;
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Nothing is left to clean up if the file cannot even be deleted
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+
+/**
+ * Rewrites a tree so that it only computes a block of its result, pushing the block down to the operands:
+ *   (A1 * ... * Ak)[R, C] = A1[R, :] * A2 * ... * Ak[:, C]
+ *   (sum of Ai)[R, C]     = sum of Ai[R, C]
+ *   (-A)[R, C]            = -(A[R, C])
+ *   T(A)[R, C]            = T(A[C, R])
+ *   (A^k)[R, C]           = A[R, :] * A^(k-2) * A[:, C], for k >= 2
+ *   SOLVE(A, B)[R, C]     = E_R * SOLVE(A, B[:, C]), E_R selecting the rows R, since every row of the
+ *                           solution depends on all of A
+ * Leaves are cut to the block without loading the rest of them: a generated leaf becomes a generated block,
+ * and any other leaf that is not in memory loads only the stored vectors the block needs.
+ * A subtree asked for its whole result is kept as it is.
+ * The same block of a shared subtree is sliced once.
+ */
+public class ResultSlicer {
+
+    private record SliceKey(ComputationNode node, int rowStart, int rowEnd, int colStart, int colEnd) {}
+
+    private final Map<SliceKey, ComputationNode> slices = new HashMap<>();
+
+    /**
+     * Returns a tree evaluating to rows [rowStart, rowEnd) and columns [colStart, colEnd) of root.
+     */
+    public ComputationNode slice(ComputationNode root, int rowStart, int rowEnd, int colStart, int colEnd) {
+        int[] shape = root.getShape();
+        if (rowStart < 0 || rowEnd > shape[0] || rowStart >= rowEnd
+                || colStart < 0 || colEnd > shape[1] || colStart >= colEnd) {
+            throw new IllegalArgumentException("Slice [" + rowStart + ", " + rowEnd + ") x [" + colStart + ", " + colEnd
+                    + ") out of bounds for a " + shape[0] + "x" + shape[1] + " result");
+        }
+        return sliceNode(root, rowStart, rowEnd, colStart, colEnd);
+    }
+
+    private ComputationNode sliceNode(ComputationNode node, int rowStart, int rowEnd, int colStart, int colEnd) {
+        int[] shape = node.getShape();
+        if (rowStart == 0 && rowEnd == shape[0] && colStart == 0 && colEnd == shape[1]) {
+            return node;
+        }
+        SliceKey key = new SliceKey(node, rowStart, rowEnd, colStart, colEnd);
+        ComputationNode done = slices.get(key);
+        if (done != null) {
+            return done;
+        }
+        List<ComputationNode> children = node.getChildren();
+        ComputationNode result;
+        switch (node.getNodeType()) {
+            case MATRIX:
+                result = sliceLeaf(node, rowStart, rowEnd, colStart, colEnd);
+                break;
+            case TRANSPOSE:
+                result = new ComputationNode(ComputationNodeType.TRANSPOSE,
+                        new ArrayList<>(List.of(sliceNode(children.get(0), colStart, colEnd, rowStart, rowEnd))));
+                break;
+            case NEGATE:
+                result = new ComputationNode(ComputationNodeType.NEGATE,
+                        new ArrayList<>(List.of(sliceNode(children.get(0), rowStart, rowEnd, colStart, colEnd))));
+                break;
+            case ADD: {
+                List<ComputationNode> terms = new ArrayList<>();
+                boolean[] negated = new boolean[children.size()];
+                for (int i = 0; i < children.size(); i++) {
+                    terms.add(sliceNode(children.get(i), rowStart, rowEnd, colStart, colEnd));
+                    negated[i] = node.isOperandNegated(i);
+                }
+                result = new ComputationNode(ComputationNodeType.ADD, terms, negated);
+                break;
+            }
+            case MULTIPLY: {
+                // Rows come from the first factor and columns from the last, the factors in between are needed whole
+                List<ComputationNode> factors = new ArrayList<>(children);
+                int last = factors.size() - 1;
+                if (last == 0) {
+                    factors.set(0, sliceNode(factors.get(0), rowStart, rowEnd, colStart, colEnd));
+                } else {
+                    int[] first = factors.get(0).getShape();
+                    int[] end = factors.get(last).getShape();
+                    factors.set(0, sliceNode(factors.get(0), rowStart, rowEnd, 0, first[1]));
+                    factors.set(last, sliceNode(factors.get(last), 0, end[0], colStart, colEnd));
+                }
+                result = new ComputationNode(ComputationNodeType.MULTIPLY, factors);
+                break;
+            }
+            case POWER: {
+                ComputationNode base = children.get(0);
+                int exponent = node.getExponent();
+                if (exponent < 2) {
+                    // A^0 is the identity, built here only for the block; A^1 is A
+                    result = exponent == 1 ? sliceNode(base, rowStart, rowEnd, colStart, colEnd)
+                            : new ComputationNode(identityBlock(rowStart, rowEnd, colStart, colEnd));
+                    break;
+                }
+                int n = shape[0];
+                List<ComputationNode> factors = new ArrayList<>();
+                factors.add(sliceNode(base, rowStart, rowEnd, 0, n));
+                if (exponent > 2) {
+                    factors.add(exponent == 3 ? base : new ComputationNode(base, exponent - 2));
+                }
+                factors.add(sliceNode(base, 0, n, colStart, colEnd));
+                result = new ComputationNode(ComputationNodeType.MULTIPLY, factors);
+                break;
+            }
+            case SOLVE: {
+                ComputationNode solution = new ComputationNode(ComputationNodeType.SOLVE, new ArrayList<>(List.of(
+                        children.get(0), sliceNode(children.get(1), 0, shape[0], colStart, colEnd))));
+                if (rowEnd - rowStart == shape[0]) {
+                    result = solution;
+                    break;
+                }
+                double[][] selection = new double[rowEnd - rowStart][shape[0]];
+                for (int i = rowStart; i < rowEnd; i++) {
+                    selection[i - rowStart][i] = 1;
+                }
+                result = new ComputationNode(ComputationNodeType.MULTIPLY,
+                        new ArrayList<>(List.of(new ComputationNode(selection), solution)));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Cannot slice a " + node.getNodeType() + " node");
+        }
+        slices.put(key, result);
+        return result;
+    }
+
+    /**
+     * Cuts a block out of a leaf in its own storage layout, leaving the leaf as it is.
+     */
+    private static ComputationNode sliceLeaf(ComputationNode leaf, int rowStart, int rowEnd, int colStart, int colEnd) {
+        VectorOrientation layout = leaf.getLayout();
+        boolean rowMajor = layout == VectorOrientation.ROW_MAJOR;
+        // Stored vectors are rows of a row-major leaf and columns of a column-major one
+        int vectorStart = rowMajor ? rowStart : colStart;
+        int vectorEnd = rowMajor ? rowEnd : colEnd;
+        int elementStart = rowMajor ? colStart : rowStart;
+        int elementEnd = rowMajor ? colEnd : rowEnd;
+        if (leaf.getSource() instanceof GeneratedMatrix generated) {
+            return new ComputationNode(generated.block(vectorStart, vectorEnd, elementStart, elementEnd), layout);
+        }
+        double[][] block;
+        if (leaf.isResident() || leaf.getSource() == null) {
+            block = cut(leaf.getStorage(), vectorStart, vectorEnd, elementStart, elementEnd);
+        } else {
+            block = cut(leaf.getSource().load(vectorStart, vectorEnd), 0, vectorEnd - vectorStart, elementStart, elementEnd);
+        }
+        ComputationNode result = new ComputationNode(block);
+        result.resolve(block, layout);
+        return result;
+    }
+
+    private static double[][] identityBlock(int rowStart, int rowEnd, int colStart, int colEnd) {
+        double[][] block = new double[rowEnd - rowStart][colEnd - colStart];
+        for (int i = Math.max(rowStart, colStart); i < Math.min(rowEnd, colEnd); i++) {
+            block[i - rowStart][i - colStart] = 1;
+        }
+        return block;
+    }
+
+    private static double[][] cut(double[][] matrix, int rowStart, int rowEnd, int colStart, int colEnd) {
+        double[][] block = new double[rowEnd - rowStart][];
+        for (int i = rowStart; i < rowEnd; i++) {
+            block[i - rowStart] = Arrays.copyOfRange(matrix[i], colStart, colEnd);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,135 @@
+package spl.lae;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import parser.RowSink;
+
+/**
+ * Hands the rows of a result to a RowSink in order, as soon as every row above them is complete.
+ * Tasks report the rows they finished; whichever task completes the next missing row becomes the writer and
+ * writes it, along with the finished rows below it, while the other tasks keep computing. Rows are written
+ * outside the lock, so a task that finishes while the writer is busy only marks its rows and returns; the
+ * writer picks them up before it stops.
+ * A failure of the sink is kept and thrown by finish(), later rows are then dropped. A task that fails stops
+ * the stream: no row is written after it, its exception is rethrown by the executor, and finish() throws it too.
+ */
+class RowEmitter {
+
+    private final RowSink sink;
+    private double[][] rows = null;
+    private boolean[] done = null;
+    private int next = 0; // first row not written yet, or being written by the writer
+    private boolean writing = false; // a task is writing rows
+    private IOException failure = null;
+    private RuntimeException taskFailure = null;
+
+    RowEmitter(RowSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Starts tracking rows that tasks write into the given array.
+     */
+    synchronized void track(double[][] rows) {
+        this.rows = rows;
+        this.done = new boolean[rows.length];
+    }
+
+    /**
+     * Returns a task that runs task and then reports rows [rowStart, rowEnd) of the tracked array as finished.
+     * If task, or writing the rows, throws, the exception is recorded before it reaches the executor,
+     * so that no row is written after it.
+     */
+    Runnable reporting(Runnable task, int rowStart, int rowEnd) {
+        return () -> {
+            try {
+                task.run();
+                finished(rowStart, rowEnd);
+            } catch (RuntimeException e) {
+                failed(e);
+                throw e;
+            }
+        };
+    }
+
+    void finished(int rowStart, int rowEnd) {
+        synchronized (this) {
+            for (int i = rowStart; i < rowEnd; i++) {
+                done[i] = true;
+            }
+            if (writing) {
+                return;
+            }
+            writing = true;
+        }
+        while (true) {
+            int from;
+            int to;
+            synchronized (this) {
+                from = next;
+                to = next;
+                while (to < done.length && done[to]) {
+                    to++;
+                }
+                if (from == to || failure != null || taskFailure != null) {
+                    writing = false;
+                    return;
+                }
+            }
+            for (int i = from; i < to; i++) {
+                if (!write(rows[i])) {
+                    break;
+                }
+            }
+            synchronized (this) {
+                next = to;
+            }
+        }
+    }
+
+    private synchronized void failed(RuntimeException e) {
+        if (taskFailure == null) {
+            taskFailure = e;
+        }
+    }
+
+    /**
+     * Throws the exception of the first task that failed, if any.
+     */
+    private synchronized void checkFailure() {
+        if (taskFailure != null) {
+            throw taskFailure;
+        }
+    }
+
+    /**
+     * Writes the rows of the complete row-major result that were not written yet.
+     */
+    synchronized void finish(double[][] result) {
+        checkFailure();
+        for (; next < result.length; next++) {
+            if (!write(result[next])) {
+                break;
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Failed to write the result", failure);
+        }
+    }
+
+    /**
+     * Writes a row and returns true, or records the failure of the sink and returns false.
+     */
+    private boolean write(double[] row) {
+        try {
+            sink.writeRow(row);
+            return true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            return false;
+        }
+    }
+}
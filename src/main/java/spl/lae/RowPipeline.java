@@ -0,0 +1,222 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+
+/**
+ * Evaluates a chain of row-local operators row by row, so that a consumer starts on row i
+ * as soon as its producer has written row i, instead of waiting for the whole producer matrix.
+ * Stage k + 1 of the chain reads stage k as one of its operands, and row i of its result only depends
+ * on row i of that operand: ADD, NEGATE, FUSED (when the operand is not read through a TRANSPOSE)
+ * and MULTIPLY (through its left operand, the right one being resolved).
+ * All other operands of every stage must be resolved. All stages are computed in the same storage layout,
+ * and "row" means a row of that storage.
+ * Each task runs a band of rows through all the stages; intermediate rows live in per-task buffers
+ * and are dropped once consumed, unless the stage has to be kept (e.g. to be cached).
+ */
+public class RowPipeline {
+
+    private final List<ComputationNode> stages; // bottom first, stage k + 1 reads stage k
+    private final VectorOrientation layout;
+    private final int rows;
+    private final int[] rowLengths;
+    private final int[] pipedIndex; // child of stage k fed by stage k - 1, -1 for the bottom stage
+    private final double[][][][] operands; // resolved operands of each stage, the window or null for the piped one
+    private final ElementwiseKernel[] kernels; // only for FUSED stages
+    private final double[][][] windows; // row window of each piped FUSED stage, standing in for its piped operand
+    private final double[][][] results; // full result of each kept stage, null for stages that are not kept
+
+    /**
+     * Prepares the operands of every stage. The top stage is always kept, other stages only if keep accepts them.
+     */
+    public RowPipeline(List<ComputationNode> stages, VectorOrientation layout, Predicate<ComputationNode> keep) {
+        this.stages = stages;
+        this.layout = layout;
+        int count = stages.size();
+        this.rowLengths = new int[count];
+        this.pipedIndex = new int[count];
+        this.operands = new double[count][][][];
+        this.kernels = new ElementwiseKernel[count];
+        this.windows = new double[count][][];
+        this.results = new double[count][][];
+
+        // Validation: getShape() of the top stage checks the shapes of the whole chain
+        int[] topShape = LinearAlgebraEngine.storageShape(stages.get(count - 1).getShape(), layout);
+        this.rows = topShape[0];
+        for (int k = 0; k < count; k++) {
+            ComputationNode stage = stages.get(k);
+            rowLengths[k] = LinearAlgebraEngine.storageShape(stage.getShape(), layout)[1];
+            pipedIndex[k] = k == 0 ? -1 : stage.getChildren().indexOf(stages.get(k - 1));
+            prepareOperands(k);
+            if (kernels[k] != null && pipedIndex[k] >= 0) {
+                // The kernel reads row i of every operand; tasks set distinct rows, so one window serves them all
+                windows[k] = new double[rows][];
+                operands[k][pipedIndex[k]] = windows[k];
+            }
+            if (k == count - 1 || keep.test(stage)) {
+                results[k] = new double[rows][];
+            }
+        }
+    }
+
+    private void prepareOperands(int k) {
+        ComputationNode stage = stages.get(k);
+        List<ComputationNode> children = stage.getChildren();
+        double[][][] stageOperands = new double[children.size()][][];
+        switch (stage.getNodeType()) {
+            case ADD:
+                for (int c = 0; c < children.size(); c++) {
+                    if (c != pipedIndex[k]) {
+                        stageOperands[c] = LinearAlgebraEngine.storageIn(children.get(c), layout);
+                    }
+                }
+                break;
+            case NEGATE:
+                if (pipedIndex[k] != 0) {
+                    // Negation keeps the layout of its operand, so the chain was given that layout
+                    stageOperands[0] = children.get(0).getStorage();
+                }
+                break;
+            case FUSED: {
+                VectorOrientation[] operandLayouts = new VectorOrientation[children.size()];
+                for (int c = 0; c < children.size(); c++) {
+                    if (c == pipedIndex[k]) {
+                        operandLayouts[c] = layout;
+                    } else {
+                        stageOperands[c] = children.get(c).getStorage();
+                        operandLayouts[c] = children.get(c).getLayout();
+                    }
+                }
+                kernels[k] = ElementwiseKernel.compile(stage, operandLayouts, layout);
+                break;
+            }
+            case MULTIPLY:
+                // Row-major left rows, right operand by columns; the left operand first, see computeInline
+                if (pipedIndex[k] != 0) {
+                    stageOperands[0] = children.get(0).getMatrix();
+                }
+                stageOperands[1] = LinearAlgebraEngine.storageIn(children.get(1), VectorOrientation.COLUMN_MAJOR);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a row-local operator: " + stage.getNodeType());
+        }
+        operands[k] = stageOperands;
+    }
+
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Rows of the top stage, each set once its task has computed it.
+     */
+    double[][] getTopRows() {
+        return results[stages.size() - 1];
+    }
+
+    /**
+     * Creates one task per band of bandRows rows; each task runs its rows through every stage in turn.
+     */
+    public List<Runnable> createTasks(int bandRows) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int r = 0; r < rows; r += bandRows) {
+            final int rowStart = r;
+            final int rowEnd = Math.min(rows, r + bandRows);
+            tasks.add(() -> runBand(rowStart, rowEnd));
+        }
+        return tasks;
+    }
+
+    private void runBand(int rowStart, int rowEnd) {
+        int count = stages.size();
+        // Per-task state: reusable buffers for dropped stages
+        double[][] buffers = new double[count][];
+        for (int k = 0; k < count; k++) {
+            if (results[k] == null) {
+                buffers[k] = new double[rowLengths[k]];
+            }
+        }
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            double[] in = null;
+            for (int k = 0; k < count; k++) {
+                double[] out = results[k] != null ? new double[rowLengths[k]] : buffers[k];
+                if (windows[k] != null) {
+                    windows[k][i] = in;
+                }
+                computeRow(k, operands[k], i, in, out);
+                if (windows[k] != null) {
+                    windows[k][i] = null;
+                }
+                if (results[k] != null) {
+                    // Each task writes distinct rows, so the result arrays need no locking
+                    results[k][i] = out;
+                }
+                in = out;
+            }
+        }
+    }
+
+    private void computeRow(int k, double[][][] stageOperands, int i, double[] in, double[] out) {
+        ComputationNode stage = stages.get(k);
+        int piped = pipedIndex[k];
+        switch (stage.getNodeType()) {
+            case ADD: {
+                Arrays.fill(out, 0);
+                for (int c = 0; c < stageOperands.length; c++) {
+                    double[] row = c == piped ? in : stageOperands[c][i];
+                    if (stage.isOperandNegated(c)) {
+                        for (int j = 0; j < out.length; j++) {
+                            out[j] -= row[j];
+                        }
+                    } else {
+                        for (int j = 0; j < out.length; j++) {
+                            out[j] += row[j];
+                        }
+                    }
+                }
+                break;
+            }
+            case NEGATE: {
+                double[] row = piped == 0 ? in : stageOperands[0][i];
+                for (int j = 0; j < out.length; j++) {
+                    out[j] = -row[j];
+                }
+                break;
+            }
+            case FUSED:
+                kernels[k].computeRow(stageOperands, i, out);
+                break;
+            default: {
+                // MULTIPLY: one dot product per output element, summed in the same order as SharedVector.dot
+                double[] a = piped == 0 ? in : stageOperands[0][i];
+                double[][] columns = stageOperands[1];
+                for (int j = 0; j < out.length; j++) {
+                    double[] b = columns[j];
+                    double sum = 0;
+                    for (int t = 0; t < b.length; t++) {
+                        sum += a[t] * b[t];
+                    }
+                    out[j] = sum;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Resolves the kept stages once all tasks have finished; the top stage is resolved last.
+     */
+    public void resolve() {
+        for (int k = 0; k < stages.size(); k++) {
+            if (results[k] != null) {
+                stages.get(k).resolve(results[k], layout);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package spl.lae;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import parser.MatrixSource;
+
+/**
+ * Writes intermediate matrices to a scratch directory so that their memory can be reclaimed,
+ * and memory-maps them back when they are needed again.
+ * A file holds the stored vector count and length as two ints, followed by the values row after row.
+ * Files live until clear() is called.
+ */
+public class SpillStore {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_MAPPING_BYTES = 1 << 30;
+
+    private final Path scratchDir;
+    private final List<Path> files = new ArrayList<>();
+    private int spillCount = 0;
+    private long spilledBytes = 0;
+    private int faults = 0;
+    private int deleteFailures = 0;
+
+    public SpillStore(Path scratchDir) {
+        this.scratchDir = scratchDir;
+        try {
+            Files.createDirectories(scratchDir);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot create scratch directory " + scratchDir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a matrix (in whatever layout it is stored) and returns a source that maps it back.
+     */
+    public synchronized MatrixSource spill(double[][] storage) {
+        int rows = storage.length;
+        int cols = rows == 0 ? 0 : storage[0].length;
+        Path file;
+        try {
+            file = Files.createTempFile(scratchDir, "spill-", ".matrix");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeInt(rows);
+                out.writeInt(cols);
+                for (double[] row : storage) {
+                    for (double value : row) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill a matrix to " + scratchDir, e);
+        }
+        files.add(file);
+        spillCount++;
+        spilledBytes += 8L * rows * cols;
+        return new SpilledMatrix(file, rows, cols);
+    }
+
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    public synchronized int getSpillCount() {
+        return spillCount;
+    }
+
+    public synchronized int getFaultCount() {
+        return faults;
+    }
+
+    /**
+     * Returns the number of files that clear() could not delete and were left in the scratch directory.
+     */
+    public synchronized int getDeleteFailures() {
+        return deleteFailures;
+    }
+
+    /**
+     * Deletes every file written so far; matrices still offloaded to them can no longer be loaded.
+     */
+    public synchronized void clear() {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // The file is left behind; the run itself no longer needs it
+                deleteFailures++;
+            }
+        }
+        files.clear();
+    }
+
+    private synchronized void recordFault() {
+        faults++;
+    }
+
+    private final class SpilledMatrix implements MatrixSource {
+        private final Path file;
+        private final int rows;
+        private final int cols;
+
+        SpilledMatrix(Path file, int rows, int cols) {
+            this.file = file;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        @Override
+        public int rows() {
+            return rows;
+        }
+
+        @Override
+        public int cols() {
+            return cols;
+        }
+
+        @Override
+        public double[][] load() {
+            return load(0, rows);
+        }
+
+        @Override
+        public double[][] load(int from, int to) {
+            recordFault();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                double[][] storage = new double[to - from][cols];
+                // A single mapping is limited to 2 GB, so large matrices are mapped in bands of rows
+                int bandRows = Math.max(1, MAX_MAPPING_BYTES / Math.max(1, 8 * cols));
+                for (int r = from; r < to; r += bandRows) {
+                    int band = Math.min(bandRows, to - r);
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_BYTES + 8L * r * cols, 8L * band * cols);
+                    DoubleBuffer values = mapped.asDoubleBuffer();
+                    for (int i = r; i < r + band; i++) {
+                        values.get(storage[i - from]);
+                    }
+                }
+                return storage;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load spilled matrix " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+import spl.lae.ExpressionOptimizer;
+import spl.lae.LinearAlgebraEngine;
+
+public class TestExpressionOptimizer {
+
+    private ComputationNode unary(ComputationNodeType type, ComputationNode child) {
+        return new ComputationNode(type, List.of(child));
+    }
+
+    private ComputationNode binary(ComputationNodeType type, ComputationNode left, ComputationNode right) {
+        return new ComputationNode(type, List.of(left, right));
+    }
+
+    @Test
+    void test_doubleTransposeAndNegateCancel() {
+        ComputationNode a = new ComputationNode(new double[][] { {1, 2}, {3, 4} });
+        ComputationNode root = unary(ComputationNodeType.NEGATE, unary(ComputationNodeType.NEGATE,
+                unary(ComputationNodeType.TRANSPOSE, unary(ComputationNodeType.TRANSPOSE, a))));
+
+        ExpressionOptimizer optimizer = new ExpressionOptimizer();
+        assertSame(a, optimizer.optimize(root));
+        assertEquals(2, optimizer.getRewriteCount());
+    }
+
+    @Test
+    void test_negatedAddendFoldedIntoSign() {
+        ComputationNode a = new ComputationNode(new double[][] { {1, 2} });
+        ComputationNode b = new ComputationNode(new double[][] { {5, 7} });
+        ComputationNode root = binary(ComputationNodeType.ADD, unary(ComputationNodeType.NEGATE, a), b);
+
+        ComputationNode optimized = new ExpressionOptimizer().optimize(root);
+        assertEquals(ComputationNodeType.ADD, optimized.getNodeType());
+        assertSame(a, optimized.getChildren().get(0));
+        assertSame(b, optimized.getChildren().get(1));
+        assertTrue(optimized.isOperandNegated(0));
+        assertFalse(optimized.isOperandNegated(1));
+
+        double[][] result = new LinearAlgebraEngine(2).run(root).getMatrix();
+        assertEquals(4, result[0][0], 1e-9);
+        assertEquals(5, result[0][1], 1e-9);
+    }
+
+    @Test
+    void test_nestedSumsFlattened() {
+        // A + (B + -(C + D)) = A + B - C - D
+        ComputationNode a = new ComputationNode(new double[][] { {1} });
+        ComputationNode b = new ComputationNode(new double[][] { {2} });
+        ComputationNode c = new ComputationNode(new double[][] { {3} });
+        ComputationNode d = new ComputationNode(new double[][] { {4} });
+        ComputationNode root = binary(ComputationNodeType.ADD, a, binary(ComputationNodeType.ADD, b,
+                unary(ComputationNodeType.NEGATE, binary(ComputationNodeType.ADD, c, d))));
+
+        ComputationNode optimized = new ExpressionOptimizer().optimize(root);
+        assertEquals(List.of(a, b, c, d), optimized.getChildren());
+        assertFalse(optimized.isOperandNegated(1));
+        assertTrue(optimized.isOperandNegated(2));
+        assertTrue(optimized.isOperandNegated(3));
+    }
+
+    @Test
+    void test_negatePushedIntoSmallestFactor() {
+        // A is 3x1, B is 1x3: negating A (3 elements) is cheaper than negating A*B (9 elements)
+        ComputationNode a = new ComputationNode(new double[][] { {1}, {2}, {3} });
+        ComputationNode b = new ComputationNode(new double[][] { {1, 1, 1} });
+        ComputationNode root = unary(ComputationNodeType.NEGATE, binary(ComputationNodeType.MULTIPLY, a, b));
+
+        ComputationNode optimized = new ExpressionOptimizer().optimize(root);
+        assertEquals(ComputationNodeType.MULTIPLY, optimized.getNodeType());
+        assertEquals(ComputationNodeType.NEGATE, optimized.getChildren().get(0).getNodeType());
+        assertSame(b, optimized.getChildren().get(1));
+    }
+
+    @Test
+    void test_transposeOfProductSwapsFactors() {
+        // T(T(A) * T(B)) = B * A, no transpose is left to materialize
+        ComputationNode a = new ComputationNode(new double[][] { {1, 2}, {3, 4} });
+        ComputationNode b = new ComputationNode(new double[][] { {0, 1}, {1, 0} });
+        ComputationNode root = unary(ComputationNodeType.TRANSPOSE, binary(ComputationNodeType.MULTIPLY,
+                unary(ComputationNodeType.TRANSPOSE, a), unary(ComputationNodeType.TRANSPOSE, b)));
+
+        ComputationNode optimized = new ExpressionOptimizer().optimize(root);
+        assertEquals(ComputationNodeType.MULTIPLY, optimized.getNodeType());
+        assertSame(b, optimized.getChildren().get(0));
+        assertSame(a, optimized.getChildren().get(1));
+
+        double[][] result = new LinearAlgebraEngine(2).run(root).getMatrix();
+        double[][] expected = { {3, 4}, {1, 2} };
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                assertEquals(expected[i][j], result[i][j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void test_powersOfPowersAndNegationsFolded() {
+        // ((-A)^2)^3 = A^6 and (-A)^3 = -(A^3)
+        ComputationNode a = new ComputationNode(new double[][] { {1, 1}, {0, 1} });
+        ExpressionOptimizer optimizer = new ExpressionOptimizer();
+
+        ComputationNode even = optimizer.optimize(new ComputationNode(
+                new ComputationNode(unary(ComputationNodeType.NEGATE, a), 2), 3));
+        assertEquals(ComputationNodeType.POWER, even.getNodeType());
+        assertEquals(6, even.getExponent());
+        assertSame(a, even.getChildren().get(0));
+
+        ComputationNode odd = optimizer.optimize(new ComputationNode(unary(ComputationNodeType.NEGATE, a), 3));
+        assertEquals(ComputationNodeType.NEGATE, odd.getNodeType());
+        assertEquals(3, odd.getChildren().get(0).getExponent());
+    }
+
+    @Test
+    void test_powersOfNonSquareOperandsStillRejected() {
+        // A^1 and (A^1)^2 must not fold away the shape error of a non-square A
+        double[][] rect = { {1, 2, 3}, {4, 5, 6} };
+        for (ComputationNode root : List.of(new ComputationNode(new ComputationNode(rect), 1),
+                new ComputationNode(new ComputationNode(new ComputationNode(rect), 1), 2))) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> new LinearAlgebraEngine(2).run(root));
+            assertEquals("Matrix power requires a square matrix", e.getMessage());
+        }
+    }
+
+    @Test
+    void test_identityAndZeroLeavesEliminated() {
+        ComputationNode a = new ComputationNode(new double[][] { {1, 2, 3}, {4, 5, 6} });
+        ComputationNode b = new ComputationNode(new double[][] { {1, 0}, {0, 2} });
+        ComputationNode identity = new ComputationNode(GeneratedMatrix.identity(3, 1));
+        ComputationNode zeros = new ComputationNode(GeneratedMatrix.zeros(2, 3));
+        ExpressionOptimizer optimizer = new ExpressionOptimizer();
+
+        // A * I = A, and B * A + 0 = B * A
+        assertSame(a, optimizer.optimize(binary(ComputationNodeType.MULTIPLY, a, identity)));
+        ComputationNode sum = optimizer.optimize(binary(ComputationNodeType.ADD,
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(b, a, identity)), zeros));
+        assertEquals(ComputationNodeType.MULTIPLY, sum.getNodeType());
+        assertEquals(List.of(b, a), sum.getChildren());
+
+        // A * T(0) is a 2x2 zero leaf, and nothing is loaded to find out
+        ComputationNode product = optimizer.optimize(binary(ComputationNodeType.MULTIPLY, a,
+                unary(ComputationNodeType.TRANSPOSE, zeros)));
+        assertEquals(ComputationNodeType.MATRIX, product.getNodeType());
+        assertFalse(product.isResident());
+        assertEquals(GeneratedMatrix.zeros(2, 2), product.getSource());
+        assertFalse(identity.isResident() || zeros.isResident());
+
+        // A product that does not fit together is left for the engine to report
+        ComputationNode mismatched = binary(ComputationNodeType.MULTIPLY, a, new ComputationNode(GeneratedMatrix.identity(2, 1)));
+        assertEquals(ComputationNodeType.MULTIPLY, optimizer.optimize(mismatched).getNodeType());
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import spl.lae.IncrementalEvaluator;
+import spl.lae.LinearAlgebraEngine;
+
+public class TestIncrementalEvaluator {
+
+    private final Random random = new Random(5);
+
+    private double[][] randomMatrix(int rows, int cols) {
+        double[][] m = new double[rows][cols];
+        for (double[] row : m) for (int j = 0; j < cols; j++) row[j] = random.nextInt(9) - 4;
+        return m;
+    }
+
+    private static double[][] copy(double[][] m) {
+        double[][] c = new double[m.length][];
+        for (int i = 0; i < m.length; i++) c[i] = m[i].clone();
+        return c;
+    }
+
+    // (A * B) + -(C), built from fresh nodes so that the engine can consume it
+    private static ComputationNode tree(double[][] a, double[][] b, double[][] c) {
+        return new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(copy(a)), new ComputationNode(copy(b)))),
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(copy(c))))));
+    }
+
+    private static void assertMatrixEquals(double[][] expected, double[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], actual[i][j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void testReplacedLeafOnlyRecomputesItsPath() {
+        double[][] a = randomMatrix(6, 6), b = randomMatrix(6, 6), c = randomMatrix(6, 6);
+        ComputationNode leafC = new ComputationNode(c);
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(a), new ComputationNode(b))),
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(leafC))));
+
+        try (IncrementalEvaluator evaluator = new IncrementalEvaluator(2, root)) {
+            evaluator.evaluate();
+            assertEquals(3, evaluator.getRecomputedCount());
+
+            double[][] newC = randomMatrix(6, 6);
+            evaluator.updateLeaf(leafC, newC);
+            double[][] result = evaluator.evaluate();
+            // NEGATE and ADD, but not the product
+            assertEquals(5, evaluator.getRecomputedCount());
+            assertMatrixEquals(new LinearAlgebraEngine(2).run(tree(a, b, newC)).getMatrix(), result);
+        }
+    }
+
+    @Test
+    void testRankOneUpdatePropagatesAsDelta() {
+        double[][] a = randomMatrix(6, 6), b = randomMatrix(6, 6), c = randomMatrix(6, 6);
+        ComputationNode leafA = new ComputationNode(a);
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(leafA, new ComputationNode(b))),
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(c)))));
+
+        try (IncrementalEvaluator evaluator = new IncrementalEvaluator(2, root)) {
+            evaluator.evaluate();
+            double[][] u = randomMatrix(6, 1), v = randomMatrix(6, 1);
+            evaluator.addToLeaf(leafA, u, v);
+            double[][] result = evaluator.evaluate();
+            assertEquals(3, evaluator.getRecomputedCount());
+            assertEquals(2, evaluator.getDeltaUpdateCount());
+
+            double[][] updatedA = copy(a);
+            for (int i = 0; i < 6; i++) for (int j = 0; j < 6; j++) updatedA[i][j] += u[i][0] * v[j][0];
+            assertMatrixEquals(new LinearAlgebraEngine(2).run(tree(updatedA, b, c)).getMatrix(), result);
+        }
+    }
+
+    @Test
+    void testUpdateMustKeepShape() {
+        ComputationNode leaf = new ComputationNode(new double[][] {{1, 2}});
+        ComputationNode root = new ComputationNode(ComputationNodeType.NEGATE, List.of(leaf));
+        try (IncrementalEvaluator evaluator = new IncrementalEvaluator(1, root)) {
+            assertThrows(IllegalArgumentException.class, () -> evaluator.updateLeaf(leaf, new double[][] {{1}, {2}}));
+            assertThrows(IllegalArgumentException.class,
+                    () -> evaluator.updateLeaf(new ComputationNode(new double[][] {{1, 2}}), new double[][] {{3, 4}}));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+import parser.InputParser;
+import parser.OutputWriter;
+import scheduling.TiredExecutor;
+import spl.lae.CommonSubexpressionEliminator;
+import spl.lae.LinearAlgebraEngine;
+
+public class TestInputParser {
+
+    @TempDir
+    Path scratch;
+
+    private ComputationNode parse(String json) throws Exception {
+        Path input = scratch.resolve("input.json");
+        Files.writeString(input, json);
+        return new InputParser().parse(input.toString());
+    }
+
+    private String parseError(String json) {
+        return assertThrows(ParseException.class, () -> parse(json)).getMessage();
+    }
+
+    @Test
+    void test_operatorsAndMatrices() throws Exception {
+        ComputationNode root = parse("{\"operands\": [[[1, 2.5], [\"3\", -4e1]], [[0, 1], [1, 0]]], \"operator\": \"*\"}");
+        assertEquals(ComputationNodeType.MULTIPLY, root.getNodeType());
+        assertArrayEquals(new double[][] {{1, 2.5}, {3, -40}}, root.getChildren().get(0).getMatrix());
+        assertArrayEquals(new double[][] {{0, 1}, {1, 0}}, root.getChildren().get(1).getMatrix());
+    }
+
+    @Test
+    void test_errorsMatchTheTreeParser() {
+        assertEquals("Empty array cannot be parsed as DataNode.", parseError("[]"));
+        assertEquals("Vectors (1D arrays) are not supported as standalone nodes.", parseError("[1, 2]"));
+        assertEquals("Inconsistent row sizes in matrix.", parseError("[[1, 2], [3]]"));
+        assertEquals("Invalid matrix row: \"ab\"", parseError("[\"ab\"]"));
+        // The node itself is reported before the errors in its operands
+        assertEquals("Invalid node structure: {\"operands\":[[]]}", parseError("{\"operands\": [[]]}"));
+        // A syntax error anywhere wins over an earlier structural error
+        assertTrue(parseError("{\"operator\": \"+\", \"operands\": [[], [[1]] ").startsWith("Failed to read the input JSON file"));
+    }
+
+    @Test
+    void test_lazyLeavesAreParsedOnFirstUse() throws Exception {
+        Path input = scratch.resolve("lazy.json");
+        Files.writeString(input, "{\"operator\": \"+\", \"operands\": [[[1, 2], [3, 4]], [[1, 2], [3, 4]], [[0.5, 0], [0, 0.5]]]}");
+        InputParser parser = new InputParser();
+        parser.setLazyLeaves(true);
+        ComputationNode root = parser.parse(input.toString());
+
+        ComputationNode first = root.getChildren().get(0);
+        assertFalse(first.isResident());
+        assertArrayEquals(new int[] {2, 2}, first.getShape());
+        // Identical literals are merged by their text, without parsing them
+        ComputationNode merged = new CommonSubexpressionEliminator().eliminate(root);
+        assertSame(merged.getChildren().get(0), merged.getChildren().get(1));
+        assertFalse(first.isResident());
+
+        assertArrayEquals(new double[][] {{2.5, 4}, {6, 8.5}}, new LinearAlgebraEngine(2).run(merged).getMatrix());
+        assertTrue(first.isResident());
+    }
+
+    @Test
+    void test_lazyLeavesReportRowErrorsWhenParsed() throws Exception {
+        Path input = scratch.resolve("lazy.json");
+        Files.writeString(input, "{\"operator\": \"-\", \"operands\": [[[1, 2], [3]]]}");
+        InputParser parser = new InputParser();
+        parser.setLazyLeaves(true);
+        ParseException error = assertThrows(ParseException.class, () -> parser.parse(input.toString()));
+        assertEquals("Inconsistent row sizes in matrix.", error.getMessage());
+    }
+
+    @Test
+    void test_largeLiteralsAreParsedInChunks() throws Exception {
+        // Over 2 MB of rows, so several chunks
+        double[][] matrix = new double[400][400];
+        StringBuilder json = new StringBuilder("{\"operator\": \"-\", \"operands\": [[");
+        java.util.Random random = new java.util.Random(44);
+        for (int i = 0; i < matrix.length; i++) {
+            json.append(i == 0 ? "[" : ",\n [");
+            for (int j = 0; j < matrix[i].length; j++) {
+                matrix[i][j] = random.nextDouble();
+                json.append(j == 0 ? "" : ", ").append(matrix[i][j]);
+            }
+            json.append("]");
+        }
+        json.append("]]}");
+        Path input = scratch.resolve("large.json");
+        Files.writeString(input, json);
+
+        for (boolean lazy : new boolean[] {false, true}) {
+            InputParser parser = new InputParser();
+            parser.setLazyLeaves(lazy);
+            parser.setParseThreads(3);
+            ComputationNode leaf = parser.parse(input.toString()).getChildren().get(0);
+            assertEquals(!lazy, leaf.isResident());
+            assertArrayEquals(matrix, leaf.getMatrix());
+        }
+    }
+
+    @Test
+    void test_matrixFileLeaves() throws Exception {
+        double[][] a = {{1, 2, 3}, {4, 5, 6}};
+        ComputationNode transposed = new ComputationNode(new double[][] {{1, 2}, {3, 4}, {5, 6}});
+        transposed.resolve(new double[][] {{1, 3, 5}, {2, 4, 6}}, memory.VectorOrientation.COLUMN_MAJOR);
+        OutputWriter.writeBinary(a, scratch.resolve("a.bin").toString());
+        OutputWriter.writeBinary(transposed, scratch.resolve("b.bin").toString());
+        Path input = scratch.resolve("files.json");
+        Files.writeString(input, "{\"operator\": \"*\", \"operands\": [{\"file\": \"a.bin\"}, {\"file\": \"b.bin\"}]}");
+
+        for (boolean lazy : new boolean[] {false, true}) {
+            InputParser parser = new InputParser();
+            parser.setLazyLeaves(lazy);
+            ComputationNode root = parser.parse(input.toString());
+            ComputationNode b = root.getChildren().get(1);
+            assertEquals(!lazy, b.isResident());
+            // The column-major file is loaded as it is stored
+            assertEquals(memory.VectorOrientation.COLUMN_MAJOR, b.getLayout());
+            assertArrayEquals(new int[] {3, 2}, b.getShape());
+            assertArrayEquals(new double[][] {{22, 28}, {49, 64}}, new LinearAlgebraEngine(2).run(root).getMatrix());
+        }
+
+        Files.writeString(scratch.resolve("bad.bin"), "not a matrix");
+        assertEquals("Invalid matrix file bad.bin: File is too short for a matrix header", parseError("{\"file\": \"bad.bin\"}"));
+        assertEquals("Invalid node structure: {\"file\":\"a.bin\",\"operator\":\"T\"}",
+                parseError("{\"file\": \"a.bin\", \"operator\": \"T\"}"));
+    }
+
+    @Test
+    void test_gzipInput() throws Exception {
+        Path input = scratch.resolve("input.json.gz");
+        String json = "{\"operator\": \"+\", \"operands\": [[[1, 2]], [[3, 4]]]}";
+        try (java.io.OutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(input))) {
+            out.write(json.getBytes());
+        }
+        for (boolean lazy : new boolean[] {false, true}) {
+            InputParser parser = new InputParser();
+            parser.setLazyLeaves(lazy);
+            parser.setParseThreads(2);
+            ComputationNode root = parser.parse(input.toString());
+            // Compressed input has no offsets to map, so its leaves are parsed right away
+            assertTrue(root.getChildren().get(1).isResident());
+            assertArrayEquals(new double[][] {{3, 4}}, root.getChildren().get(1).getMatrix());
+        }
+
+        // Malformed nodes are quoted from the inflated input
+        try (java.io.OutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(input))) {
+            out.write("{\"operands\": [[[1]]],  \"extra\": 1}".getBytes());
+        }
+        ParseException error = assertThrows(ParseException.class, () -> new InputParser().parse(input.toString()));
+        assertEquals("Invalid node structure: {\"operands\":[[[1]]],\"extra\":1}", error.getMessage());
+
+        // A truncated file fails like any unreadable input
+        byte[] bytes = Files.readAllBytes(input);
+        Files.write(input, java.util.Arrays.copyOf(bytes, bytes.length / 2));
+        error = assertThrows(ParseException.class, () -> new InputParser().parse(input.toString()));
+        assertTrue(error.getMessage().startsWith("Failed to read the input JSON file"), error.getMessage());
+    }
+
+    @Test
+    void test_definitionsAreSharedByReferences() throws Exception {
+        // References may come before or after the definitions
+        String json = "{\"operator\": \"+\", \"operands\": [{\"ref\": \"W\"}, "
+                + "{\"operator\": \"*\", \"operands\": [{\"ref\": \"W\"}, {\"ref\": \"I\"}]}], "
+                + "\"definitions\": {\"W\": [[1, 2], [3, 4]], \"I\": [[1, 0], [0, 1]]}}";
+        for (boolean lazy : new boolean[] {false, true}) {
+            Path input = scratch.resolve("definitions.json");
+            Files.writeString(input, json);
+            InputParser parser = new InputParser();
+            parser.setLazyLeaves(lazy);
+            ComputationNode root = parser.parse(input.toString());
+            ComputationNode w = root.getChildren().get(0);
+            assertSame(w, root.getChildren().get(1).getChildren().get(0));
+            assertEquals(!lazy, w.isResident());
+            assertArrayEquals(new double[][] {{2, 4}, {6, 8}}, new LinearAlgebraEngine(2).run(root).getMatrix());
+        }
+        assertArrayEquals(new double[][] {{5}}, parse("{\"definitions\": {\"A\": [[5]]}, \"ref\": \"A\"}").getMatrix());
+
+        assertEquals("Undefined reference: B", parseError("{\"operator\": \"T\", \"operands\": [{\"ref\": \"B\"}]}"));
+        assertEquals("Duplicate definition: A",
+                parseError("{\"definitions\": {\"A\": [[1]], \"A\": [[2]]}, \"ref\": \"A\"}"));
+        assertEquals("Definition A is not a matrix",
+                parseError("{\"definitions\": {\"A\": {\"operator\": \"T\", \"operands\": [[[1]]]}}, \"ref\": \"A\"}"));
+        assertEquals("Definition A cannot reference B",
+                parseError("{\"definitions\": {\"B\": [[1]], \"A\": {\"ref\": \"B\"}}, \"ref\": \"A\"}"));
+        // Only the root object has definitions
+        assertEquals("Invalid node structure: {\"definitions\":{\"A\":[[1]]},\"ref\":\"A\"}",
+                parseError("{\"operator\": \"T\", \"operands\": [{\"definitions\": {\"A\": [[1]]}, \"ref\": \"A\"}]}"));
+    }
+
+    @Test
+    void test_generatorLeaves() throws Exception {
+        ComputationNode root = parse("{\"operator\": \"+\", \"operands\": [{\"identity\": 2}, "
+                + "{\"constant\": [2, 2], \"value\": 1.5}, {\"zeros\": [2, 2]}]}");
+        assertFalse(root.getChildren().get(0).isResident());
+        assertArrayEquals(new double[][] {{2.5, 1.5}, {1.5, 2.5}}, new LinearAlgebraEngine(2).run(root).getMatrix());
+
+        // Random matrices draw the same values on any number of threads
+        java.util.SplittableRandom sequential = new java.util.SplittableRandom(7);
+        double[][] expected = new double[600][700];
+        for (double[] row : expected) for (int j = 0; j < row.length; j++) row[j] = sequential.nextDouble();
+        for (int threads : new int[] {1, 4}) {
+            Path input = scratch.resolve("random.json");
+            Files.writeString(input, "{\"random\": [600, 700], \"seed\": 7}");
+            InputParser parser = new InputParser();
+            parser.setParseThreads(threads);
+            assertArrayEquals(expected, parser.parse(input.toString()).getMatrix());
+        }
+        // On an engine worker the bands are generated by that worker alone
+        double[][][] onWorker = new double[1][][];
+        TiredExecutor executor = new TiredExecutor(2);
+        executor.submitAll(List.of(() -> onWorker[0] = GeneratedMatrix.random(600, 700, 7, 4).load()));
+        executor.shutdown();
+        assertArrayEquals(expected, onWorker[0]);
+
+        assertEquals("Invalid identity size: 0", parseError("{\"identity\": 0}"));
+        assertEquals("Invalid zeros size: [2]", parseError("{\"zeros\": [2]}"));
+        assertEquals("Invalid seed: 1.5", parseError("{\"random\": [1, 1], \"seed\": 1.5}"));
+        assertEquals("Invalid constant value: \"x\"", parseError("{\"constant\": [1, 1], \"value\": \"x\"}"));
+        assertEquals("Invalid node structure: {\"zeros\":[1,1],\"seed\":3}", parseError("{\"zeros\": [1, 1], \"seed\": 3}"));
+        assertEquals("Invalid node structure: {\"identity\":2,\"zeros\":[2,2]}", parseError("{\"identity\": 2, \"zeros\": [2, 2]}"));
+    }
+}
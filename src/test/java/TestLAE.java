@@ -1,11 +1,39 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
 
+import memory.VectorOrientation;
 import parser.ComputationNode;
 import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+import parser.InputParser;
+import parser.MatrixSource;
+import spl.lae.BlockedLU;
+import spl.lae.CommonSubexpressionEliminator;
+import spl.lae.ElementwiseFusion;
+import spl.lae.ElementwiseKernel;
+import spl.lae.ExpressionOptimizer;
+import spl.lae.InlineKernels;
+import spl.lae.LayoutPlanner;
 import spl.lae.LinearAlgebraEngine;
+import spl.lae.MatrixPower;
+import spl.lae.MemoryPlanner;
+import spl.lae.MultiplyTiling;
+import spl.lae.SpillStore;
 
 public class TestLAE {
 
@@ -171,4 +199,637 @@ public class TestLAE {
         assertMatrixEquals(expected, result, 1e-9);
     }
 
+    @Test
+    void test_ADD_manyOperandsWithNegation() {
+        // Expression: A + B - C + D, summed by one fused kernel
+        double[][] A = { {1,2}, {3,4} };
+        double[][] B = { {1,1}, {1,1} };
+        double[][] C = { {2,2}, {2,2} };
+        double[][] D = { {0,1}, {0,1} };
+
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD,
+                new ArrayList<>(List.of(new ComputationNode(A), new ComputationNode(B),
+                        new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(C))),
+                        new ComputationNode(D)))
+        );
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(3);
+        double[][] result = lae.run(root).getMatrix();
+
+        double[][] expected = { {0,2}, {2,4} };
+        assertMatrixEquals(expected, result, 1e-9);
+    }
+
+    @Test
+    void test_FusedElementwiseChain() {
+        // Expression: -(A + T(B)) + C, evaluated by one generated kernel
+        double[][] A = { {1,2,3}, {4,5,6} };
+        double[][] B = { {1,0}, {0,1}, {1,1} };
+        double[][] C = { {10,10,10}, {10,10,10} };
+
+        ComputationNode sum = new ComputationNode(ComputationNodeType.ADD, List.of(new ComputationNode(A),
+                new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(new ComputationNode(B)))));
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(sum)), new ComputationNode(C)));
+
+        ComputationNode fused = new ElementwiseFusion().fuse(new ExpressionOptimizer().optimize(root));
+        assertEquals(ComputationNodeType.FUSED, fused.getNodeType());
+        assertEquals(3, fused.getChildren().size());
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        double[][] result = lae.run(root).getMatrix();
+
+        double[][] expected = { {8,8,6}, {6,4,3} };
+        assertMatrixEquals(expected, result, 1e-9);
+    }
+
+    @Test
+    void test_FusedKernelMatchesOperatorByOperator() {
+        // 13 rows: one full band of rows and a partial one
+        int n = 13;
+        java.util.Random random = new java.util.Random(28);
+        double[][][] operands = new double[3][n][n];
+        for (double[][] matrix : operands) for (double[] row : matrix) for (int j = 0; j < n; j++) row[j] = random.nextDouble();
+        ComputationNode a = new ComputationNode(operands[0]);
+        ComputationNode b = new ComputationNode(operands[1]);
+        ComputationNode c = new ComputationNode(operands[2]);
+        // T(A + B) - (C + T(A)): both sums are computed on their own, in the order of the expression
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(new ComputationNode(ComputationNodeType.ADD, List.of(a, b)))),
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(ComputationNodeType.ADD,
+                        List.of(c, new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(a))))))));
+        ComputationNode fused = new ElementwiseFusion().fuse(root);
+        assertEquals(ComputationNodeType.FUSED, fused.getNodeType());
+
+        double[][] expected = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                expected[i][j] = (operands[0][j][i] + operands[1][j][i]) - (operands[2][i][j] + operands[0][j][i]);
+            }
+        }
+        double[][] rows = new double[n][n];
+        ElementwiseKernel kernel = ElementwiseKernel.compile(fused);
+        kernel.computeRows(new double[][][] {operands[0], operands[1], operands[2]}, 0, n, rows);
+        double[] row = new double[n];
+        kernel.computeRow(new double[][][] {operands[0], operands[1], operands[2]}, 9, row);
+        for (int i = 0; i < n; i++) {
+            assertArrayEquals(expected[i], rows[i]);
+        }
+        assertArrayEquals(expected[9], row);
+    }
+
+    /**
+     * Times the fused kernel of -(A + T(B)) + C and of T(A + B) - C against the same operators run one by one,
+     * single-threaded, best of several runs after a warm-up. Run with mvn test -Dlae.benchmark=true;
+     * it only asserts, and reports the timings when fusion does not win.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "lae.benchmark", matches = "true")
+    void benchmark_FusedKernelBeatsUnfusedOperators() {
+        int n = 1500;
+        java.util.Random random = new java.util.Random(28);
+        double[][][] operands = new double[3][n][n];
+        for (double[][] matrix : operands) for (double[] row : matrix) for (int j = 0; j < n; j++) row[j] = random.nextDouble();
+        ComputationNode a = new ComputationNode(operands[0]);
+        ComputationNode b = new ComputationNode(operands[1]);
+        ComputationNode c = new ComputationNode(operands[2]);
+
+        // -(A + T(B)) + C is one signed sum of A, T(B) and C
+        ComputationNode flat = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(ComputationNodeType.ADD,
+                        List.of(a, new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(b)))))), c));
+        ElementwiseKernel flatKernel = ElementwiseKernel.compile(new ElementwiseFusion().fuse(new ExpressionOptimizer().optimize(flat)));
+        double fusedFlat = bestSeconds(() -> InlineKernels.fused(flatKernel, operands, n, n));
+        double unfusedFlat = bestSeconds(() -> InlineKernels.add(new double[][][] {operands[0],
+                InlineKernels.transpose(operands[1]), operands[2]}, new boolean[] {true, true, false}, n, n));
+
+        // T(A + B) - C sums A + B on its own before transposing it
+        ComputationNode nested = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(new ComputationNode(ComputationNodeType.ADD, List.of(a, b)))),
+                new ComputationNode(ComputationNodeType.NEGATE, List.of(c))));
+        ElementwiseKernel nestedKernel = ElementwiseKernel.compile(new ElementwiseFusion().fuse(new ExpressionOptimizer().optimize(nested)));
+        double fusedNested = bestSeconds(() -> InlineKernels.fused(nestedKernel, operands, n, n));
+        double unfusedNested = bestSeconds(() -> InlineKernels.add(new double[][][] {InlineKernels.transpose(
+                InlineKernels.add(new double[][][] {operands[0], operands[1]}, new boolean[2], n, n)), operands[2]},
+                new boolean[] {false, true}, n, n));
+
+        assertTrue(fusedFlat < unfusedFlat, String.format("-(A + T(B)) + C: fused %.1f ms, unfused %.1f ms",
+                fusedFlat * 1e3, unfusedFlat * 1e3));
+        assertTrue(fusedNested < unfusedNested, String.format("T(A + B) - C: fused %.1f ms, unfused %.1f ms",
+                fusedNested * 1e3, unfusedNested * 1e3));
+    }
+
+    private static double bestSeconds(Runnable work) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 15; run++) {
+            long start = System.nanoTime();
+            work.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e9);
+        }
+        return best;
+    }
+
+    @Test
+    void test_CommonSubexpressionsShared() {
+        // Expression: A*B + A*B, where both products are spelled out as separate literals
+        double[][] A = { {1,2}, {3,4} };
+        double[][] B = { {0,1}, {1,0} };
+
+        ComputationNode left = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(new ComputationNode(A), new ComputationNode(B)));
+        ComputationNode right = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(new ComputationNode(new double[][] { {1,2}, {3,4} }), new ComputationNode(new double[][] { {0,1}, {1,0} })));
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(left, right));
+
+        CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator();
+        ComputationNode shared = eliminator.eliminate(new ExpressionOptimizer().optimize(root));
+        assertSame(shared.getChildren().get(0), shared.getChildren().get(1));
+        assertEquals(3, eliminator.getEliminatedCount());
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        double[][] result = lae.run(root).getMatrix();
+
+        double[][] expected = { {4,2}, {8,6} };
+        assertMatrixEquals(expected, result, 1e-9);
+    }
+
+    @Test
+    void test_CommonSubexpressionsKeepLeafLayouts() {
+        MatrixSource source = new MatrixSource() {
+            public int rows() { return 2; }
+            public int cols() { return 2; }
+            public double[][] load() { return new double[][] { {1,2}, {3,4} }; }
+        };
+        // The same storage read by columns is the transpose of the row-major leaf, the two must not be merged
+        ComputationNode columnMajor = new ComputationNode(source, VectorOrientation.COLUMN_MAJOR);
+        columnMajor.getStorage();
+        ComputationNode rowMajor = new ComputationNode(new double[][] { {1,2}, {3,4} });
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(columnMajor, rowMajor));
+
+        ComputationNode merged = new CommonSubexpressionEliminator().eliminate(root);
+        assertNotSame(merged.getChildren().get(0), merged.getChildren().get(1));
+        // Keying the leaf neither converted it to row-major nor dropped its source
+        assertEquals(VectorOrientation.COLUMN_MAJOR, columnMajor.getLayout());
+        assertSame(source, columnMajor.getSource());
+    }
+
+    @Test
+    void test_MULTIPLY_tilingAtBothExtremes() {
+        // Few long rows: one task per output element over the long inner dimension
+        MultiplyTiling wide = MultiplyTiling.plan(4, 4, 100000, 64, 1_000);
+        assertEquals(16, wide.getTileCount());
+
+        // Many short rows: row bands instead of one task per row
+        MultiplyTiling tall = MultiplyTiling.plan(100000, 8, 8, 64, 20_000);
+        assertTrue(tall.getTileCount() <= 64 * 4);
+        assertTrue(tall.getTileCount() >= 1);
+        assertEquals(8, tall.getTileCols());
+    }
+
+    @Test
+    void test_MULTIPLY_splitKIsReproducible() {
+        // 1xN times Nx1: a single output element, so the inner dimension is split across workers
+        int n = 20000;
+        double[][] row = new double[1][n];
+        double[][] col = new double[n][1];
+        double expected = 0;
+        for (int k = 0; k < n; k++) {
+            row[0][k] = 0.1 * (k % 7);
+            col[k][0] = 1.0 / (1 + k % 13);
+            expected += row[0][k] * col[k][0];
+        }
+        assertTrue(MultiplyTiling.splitCount(1, 1, n, 8) > 1);
+        // T(X)*X for a tall X: k x k outputs with k * k >= workers still split the long inner dimension
+        assertTrue(MultiplyTiling.splitCount(2, 2, 100_000, 4) > 1);
+        assertTrue(MultiplyTiling.splitCount(3, 3, 100_000, 8) > 1);
+        assertEquals(1, MultiplyTiling.splitCount(2, 2, 100_000, 1));
+        assertEquals(1, MultiplyTiling.splitCount(64, 64, 100_000, 8));
+        assertEquals(1, MultiplyTiling.splitCount(2, 2, 4096, 4));
+
+        double[] results = new double[2];
+        for (int run = 0; run < 2; run++) {
+            ComputationNode root = new ComputationNode(ComputationNodeType.MULTIPLY,
+                    List.of(new ComputationNode(row), new ComputationNode(col)));
+            results[run] = new LinearAlgebraEngine(8).run(root).getMatrix()[0][0];
+        }
+        assertEquals(expected, results[0], 1e-9);
+        assertEquals(results[0], results[1], 0.0);
+    }
+
+    @Test
+    void test_InlineThresholdCalibrationLeavesWorkersIdle() {
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        assertTrue(lae.getInlineThreshold() > 0);
+        // Calibration runs on its own probe executor, so the engine's workers have not run anything yet
+        String report = lae.getWorkerReport();
+        assertEquals(2, report.split("TimeUsed=0 ns", -1).length - 1, report);
+        lae.setInlineThreshold(5);
+        assertEquals(5, lae.getInlineThreshold());
+        lae.shutdown();
+    }
+
+    @Test
+    void test_InlineAndExecutorPathsAgree() {
+        java.util.Random random = new java.util.Random(7);
+        double[][] A = new double[20][30];
+        double[][] B = new double[30][10];
+        for (double[] row : A) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+        for (double[] row : B) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+
+        double[][][] results = new double[2][][];
+        for (int run = 0; run < 2; run++) {
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+            assertTrue(lae.getInlineThreshold() > 0);
+            // First run on the executor, second on the calling thread
+            lae.setInlineThreshold(run == 0 ? 0 : Long.MAX_VALUE);
+            ComputationNode root = new ComputationNode(ComputationNodeType.MULTIPLY,
+                    List.of(new ComputationNode(A), new ComputationNode(B)));
+            results[run] = lae.run(root).getMatrix();
+        }
+        assertMatrixEquals(results[0], results[1], 0.0);
+    }
+
+    @Test
+    void test_LayoutPlannerStoresRightOperandsByColumn() {
+        double[][] A = {{1, 2}, {3, 4}};
+        double[][] B = {{0, 1}, {1, 0}};
+        double[][] C = {{2, 0}, {0, 2}};
+        // A * (B * C): the inner product is only read by columns, T(A) is a relabelled A
+        ComputationNode inner = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(new ComputationNode(B), new ComputationNode(C)));
+        ComputationNode transpose = new ComputationNode(ComputationNodeType.TRANSPOSE,
+                List.of(new ComputationNode(A)));
+        ComputationNode root = new ComputationNode(ComputationNodeType.MULTIPLY, List.of(transpose, inner));
+
+        Map<ComputationNode, VectorOrientation> layouts = new LayoutPlanner().plan(root);
+        assertEquals(VectorOrientation.ROW_MAJOR, layouts.get(root));
+        assertEquals(VectorOrientation.COLUMN_MAJOR, layouts.get(inner));
+        assertEquals(VectorOrientation.COLUMN_MAJOR, layouts.get(transpose));
+
+        for (long threshold : new long[] { 0, Long.MAX_VALUE }) {
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+            lae.setInlineThreshold(threshold);
+            ComputationNode result = lae.run(new ComputationNode(ComputationNodeType.MULTIPLY, List.of(
+                    new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(new ComputationNode(A))),
+                    new ComputationNode(ComputationNodeType.MULTIPLY,
+                            List.of(new ComputationNode(B), new ComputationNode(C))))));
+            assertEquals(VectorOrientation.ROW_MAJOR, result.getLayout());
+            assertMatrixEquals(new double[][] {{6, 2}, {8, 4}}, result.getMatrix(), 1e-9);
+        }
+    }
+
+    @Test
+    void test_RowPipelineMatchesOperatorByOperator() {
+        java.util.Random random = new java.util.Random(11);
+        double[][][] m = new double[4][40][40];
+        for (double[][] matrix : m) for (double[] row : matrix) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+
+        double[][][] results = new double[2][][];
+        for (int run = 0; run < 2; run++) {
+            // -((A + B) * C * D): the sum, both products and the negation form one row-local chain
+            ComputationNode sum = new ComputationNode(ComputationNodeType.ADD,
+                    List.of(new ComputationNode(m[0]), new ComputationNode(m[1])));
+            ComputationNode product = new ComputationNode(ComputationNodeType.MULTIPLY,
+                    new ArrayList<>(List.of(sum, new ComputationNode(m[2]), new ComputationNode(m[3]))));
+            ComputationNode root = new ComputationNode(ComputationNodeType.NEGATE, List.of(product));
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+            // First run pipelined on the executor, second operator by operator on the calling thread
+            lae.setInlineThreshold(run == 0 ? 0 : Long.MAX_VALUE);
+            results[run] = lae.run(root).getMatrix();
+        }
+        assertMatrixEquals(results[1], results[0], 0.0);
+    }
+
+    @Test
+    void test_MemoryPlannerEvaluatesTheHungrySubtreeFirst() {
+        // P = A * B is small; Q = (C * D) * G goes through a 10x100 intermediate
+        ComputationNode p = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(new ComputationNode(new double[10][1]), new ComputationNode(new double[1][10])));
+        ComputationNode cd = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(new ComputationNode(new double[10][100]), new ComputationNode(new double[100][100])));
+        ComputationNode q = new ComputationNode(ComputationNodeType.MULTIPLY,
+                List.of(cd, new ComputationNode(new double[100][10])));
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(p, q));
+
+        MemoryPlanner planner = new MemoryPlanner();
+        List<ComputationNode> schedule = planner.plan(root);
+        assertEquals(List.of(cd, q, p, root), schedule);
+        // C * D (8000 bytes) and its product with G (800) are alive at once; P is only computed afterwards
+        assertEquals(8800, planner.getPredictedPeak());
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        lae.run(root);
+        assertTrue(lae.getMemoryReport().startsWith("Memory: predicted peak=8800 bytes"));
+    }
+
+    @Test
+    void test_ConsumedIntermediatesAreDropped() {
+        ComputationNode a = new ComputationNode(new double[][] {{1, 2}, {3, 4}});
+        ComputationNode b = new ComputationNode(new double[][] {{0, 1}, {1, 0}});
+        ComputationNode product = new ComputationNode(ComputationNodeType.MULTIPLY, List.of(a, b));
+        ComputationNode root = new ComputationNode(ComputationNodeType.NEGATE, List.of(product));
+        MemoryPlanner planner = new MemoryPlanner();
+        assertEquals(List.of(product, root), planner.plan(root));
+
+        // Replay the steps of the engine
+        product.resolve(new double[][] {{2, 1}, {4, 3}});
+        planner.recordStep(List.of(product), List.of(a, b));
+        assertTrue(product.isResident());
+        root.resolve(new double[][] {{-2, -1}, {-4, -3}});
+        planner.recordStep(List.of(root), List.of(product));
+        // The product has no consumer left, its matrix is dropped; inputs are left alone
+        assertFalse(product.isResident());
+        assertTrue(a.isResident());
+        assertTrue(root.isResident());
+    }
+
+    @Test
+    void test_SpillUnderMemoryBudget(@TempDir Path scratch) throws Exception {
+        double[][] A = {{1, 2}, {3, 4}};
+        double[][] B = {{0, 1}, {1, 0}};
+        double[][] C = {{2, 0}, {0, 2}};
+        // A budget of 0 spills every intermediate result as soon as it is computed
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(A), new ComputationNode(B))),
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(C), new ComputationNode(C)))));
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        lae.setMemoryBudget(0, scratch);
+        double[][] result = lae.run(root).getMatrix();
+
+        assertMatrixEquals(new double[][] {{6, 1}, {4, 7}}, result, 1e-9);
+        // Both products wait for the sum on disk
+        assertTrue(lae.getMemoryReport().contains("Spilled: 2 matrices, 64 bytes, 2 loads"));
+        try (Stream<Path> files = Files.list(scratch)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void test_SpillFilesRemovedWhenRunFails(@TempDir Path scratch) throws Exception {
+        double[][] A = {{1, 2}, {3, 4}};
+        double[][] B = {{0, 1}, {1, 0}};
+        double[][] C = {{2, 0}, {0, 2}};
+        // An input that fails to load, as a lazily parsed file with a malformed row would
+        MatrixSource unreadable = new MatrixSource() {
+            public int rows() { return 2; }
+            public int cols() { return 2; }
+            public double[][] load() { throw new IllegalStateException("unreadable input"); }
+        };
+        // The first two products are spilled before the third one reads the unreadable input
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(A), new ComputationNode(B))),
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(C), new ComputationNode(C))),
+                new ComputationNode(ComputationNodeType.MULTIPLY, List.of(new ComputationNode(C), new ComputationNode(unreadable)))));
+
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+        lae.setMemoryBudget(0, scratch);
+        assertThrows(IllegalStateException.class, () -> lae.run(root));
+
+        assertTrue(lae.getMemoryReport().contains("Spilled: 2 matrices"), lae.getMemoryReport());
+        try (Stream<Path> files = Files.list(scratch)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void test_SpillFileDeleteFailuresAreCounted(@TempDir Path scratch) throws Exception {
+        SpillStore store = new SpillStore(scratch);
+        store.spill(new double[][] {{1, 2}, {3, 4}});
+        Path file;
+        try (Stream<Path> files = Files.list(scratch)) {
+            file = files.findFirst().orElseThrow();
+        }
+        // A non-empty directory in place of the spill file cannot be deleted
+        Files.delete(file);
+        Files.createDirectory(file);
+        Files.writeString(file.resolve("pinned"), "x");
+
+        store.clear();
+        assertEquals(1, store.getDeleteFailures());
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    void test_RunSliceMatchesTheBlockOfTheFullResult() {
+        java.util.Random random = new java.util.Random(5);
+        double[][][] m = new double[3][12][12];
+        for (double[][] matrix : m) for (double[] row : matrix) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+
+        double[][][] results = new double[2][][];
+        for (int run = 0; run < 2; run++) {
+            // T(A * B) - C
+            ComputationNode product = new ComputationNode(ComputationNodeType.MULTIPLY,
+                    List.of(new ComputationNode(m[0]), new ComputationNode(m[1])));
+            ComputationNode root = new ComputationNode(ComputationNodeType.ADD,
+                    List.of(new ComputationNode(ComputationNodeType.TRANSPOSE, List.of(product)),
+                            new ComputationNode(ComputationNodeType.NEGATE, List.of(new ComputationNode(m[2])))));
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+            results[run] = run == 0 ? lae.run(root).getMatrix() : lae.run(root, 3, 7, 8, 12).getMatrix();
+        }
+        double[][] expected = new double[4][];
+        for (int i = 0; i < 4; i++) {
+            expected[i] = java.util.Arrays.copyOfRange(results[0][3 + i], 8, 12);
+        }
+        assertMatrixEquals(expected, results[1], 1e-9);
+    }
+
+    @Test
+    void test_RunSliceOutOfBounds() {
+        ComputationNode root = new ComputationNode(new double[][] {{1, 2}, {3, 4}});
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(1);
+        assertThrows(IllegalArgumentException.class, () -> lae.run(root, 0, 3, 0, 1));
+    }
+
+    @Test
+    void test_RunSliceLoadsOnlyTheBlockOfItsLeaves() {
+        double[][] columns = new double[6][6];
+        for (int j = 0; j < 6; j++) for (int i = 0; i < 6; i++) columns[j][i] = 10 * i + j;
+        List<int[]> loads = new ArrayList<>();
+        MatrixSource source = new MatrixSource() {
+            public int rows() { return 6; }
+            public int cols() { return 6; }
+            public double[][] load() { return load(0, 6); }
+            public double[][] load(int from, int to) {
+                loads.add(new int[] {from, to});
+                return java.util.Arrays.copyOfRange(columns, from, to);
+            }
+        };
+        ComputationNode columnMajor = new ComputationNode(source, VectorOrientation.COLUMN_MAJOR);
+        GeneratedMatrix random = GeneratedMatrix.random(6, 6, 11, 1);
+        ComputationNode root = new ComputationNode(ComputationNodeType.ADD, List.of(
+                columnMajor, new ComputationNode(random), new ComputationNode(GeneratedMatrix.identity(6, 1))));
+
+        double[][] block = new LinearAlgebraEngine(2).run(root, 1, 3, 2, 5).getMatrix();
+        double[][] values = random.load();
+        for (int i = 1; i < 3; i++) {
+            for (int j = 2; j < 5; j++) {
+                assertEquals(10 * i + j + values[i][j] + (i == j ? 1 : 0), block[i - 1][j - 2], 1e-12);
+            }
+        }
+        // Only the stored columns of the block were read, and the leaf was left column-major and unloaded
+        assertEquals(1, loads.size());
+        assertArrayEquals(new int[] {2, 5}, loads.get(0));
+        assertFalse(columnMajor.isResident());
+        assertEquals(VectorOrientation.COLUMN_MAJOR, columnMajor.getLayout());
+
+        // Blocks of generated leaves are generated on their own
+        assertTrue(GeneratedMatrix.identity(6, 1).block(2, 4, 2, 4).isIdentity());
+        assertTrue(GeneratedMatrix.identity(6, 1).block(0, 2, 3, 6).isZero());
+        assertArrayEquals(new double[][] {{0, 1, 0}, {0, 0, 1}}, GeneratedMatrix.identity(6, 1).block(1, 3, 0, 3).load());
+    }
+
+    @Test
+    void test_POWER_bySquaring() {
+        java.util.Random random = new java.util.Random(3);
+        double[][] A = new double[9][9];
+        for (double[] row : A) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble() - 0.5;
+
+        double[][] expected = new double[9][9];
+        for (int i = 0; i < 9; i++) expected[i][i] = 1;
+        for (int exponent = 0; exponent <= 13; exponent++) {
+            for (long threshold : new long[] { 0, Long.MAX_VALUE }) {
+                LinearAlgebraEngine lae = new LinearAlgebraEngine(3);
+                lae.setInlineThreshold(threshold);
+                double[][] result = lae.run(new ComputationNode("^", new ArrayList<>(List.of(new ComputationNode(A))), exponent)).getMatrix();
+                assertMatrixEquals(expected, result, 1e-9);
+            }
+            expected = multiply(expected, A);
+        }
+        // A^13 = A^8 * A^4 * A: three squarings and two products
+        assertEquals(5, MatrixPower.multiplyCount(13));
+    }
+
+    @Test
+    void test_POWER_parsedWithExponent(@TempDir Path scratch) throws Exception {
+        Path input = scratch.resolve("power.json");
+        Files.writeString(input, "{\"operator\": \"^\", \"exponent\": 3, \"operands\": [[[1, 1], [0, 1]]]}");
+        ComputationNode root = new InputParser().parse(input.toString());
+        assertEquals(ComputationNodeType.POWER, root.getNodeType());
+        assertMatrixEquals(new double[][] {{1, 3}, {0, 1}}, new LinearAlgebraEngine(2).run(root).getMatrix(), 1e-9);
+
+        Files.writeString(input, "{\"operator\": \"^\", \"exponent\": -1, \"operands\": [[[1, 1], [0, 1]]]}");
+        assertThrows(java.text.ParseException.class, () -> new InputParser().parse(input.toString()));
+    }
+
+    @Test
+    void test_SOLVE_blockedLU() {
+        java.util.Random random = new java.util.Random(8);
+        int n = 150;
+        double[][] A = new double[n][n];
+        double[][] B = new double[n][4];
+        for (double[] row : A) for (int j = 0; j < n; j++) row[j] = random.nextDouble() - 0.5;
+        for (double[] row : B) for (int j = 0; j < 4; j++) row[j] = random.nextDouble();
+
+        // 150 columns take three panels of 64; A X must give back B
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+        lae.setInlineThreshold(0);
+        double[][] X = lae.run(new ComputationNode("\\", List.of(new ComputationNode(A), new ComputationNode(B)))).getMatrix();
+        assertMatrixEquals(B, multiply(A, X), 1e-8);
+
+        // Small panels pivot across panel boundaries
+        BlockedLU lu = new BlockedLU(A, 7);
+        while (lu.hasNextStep()) {
+            lu.nextStep(1, 0).forEach(Runnable::run);
+        }
+        double[][] Y = new double[n][];
+        lu.createSolveTasks(B, Y, 3, 0).forEach(Runnable::run);
+        assertMatrixEquals(X, Y, 1e-9);
+    }
+
+    @Test
+    void test_SOLVE_singular() {
+        double[][] A = {{1, 2}, {2, 4}};
+        ComputationNode root = new ComputationNode(ComputationNodeType.SOLVE,
+                List.of(new ComputationNode(A), new ComputationNode(new double[][] {{1}, {1}})));
+        assertThrows(IllegalArgumentException.class, () -> new LinearAlgebraEngine(2).run(root));
+    }
+
+    @Test
+    void test_RunStreamsRootRowsInOrder() {
+        java.util.Random random = new java.util.Random(47);
+        double[][][] m = new double[2][60][60];
+        for (double[][] matrix : m) for (double[] row : matrix) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+
+        Thread caller = Thread.currentThread();
+        for (ComputationNodeType type : List.of(ComputationNodeType.ADD, ComputationNodeType.NEGATE,
+                ComputationNodeType.MULTIPLY, ComputationNodeType.TRANSPOSE)) {
+            List<ComputationNode> operands = new ArrayList<>(List.of(new ComputationNode(m[0])));
+            if (type == ComputationNodeType.ADD || type == ComputationNodeType.MULTIPLY) {
+                operands.add(new ComputationNode(m[1]));
+            }
+            ComputationNode root = new ComputationNode(type, operands);
+            List<double[]> written = new ArrayList<>();
+            boolean[] writtenByWorker = new boolean[1];
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+            lae.setInlineThreshold(0);
+            double[][] result = lae.run(root, row -> {
+                written.add(row);
+                writtenByWorker[0] |= Thread.currentThread() != caller;
+            }).getMatrix();
+
+            assertMatrixEquals(result, written.toArray(new double[0][]), 0.0);
+            // Row-local roots are written by the workers while they compute; a transpose is written at the end
+            assertEquals(type != ComputationNodeType.TRANSPOSE, writtenByWorker[0], type.toString());
+        }
+    }
+
+    @Test
+    void test_JaggedOperandRejectedBeforeEvaluation() {
+        double[][] A = new double[60][60];
+        double[][] B = new double[60][60];
+        B[50] = new double[10];
+        for (long threshold : new long[] { 0, Long.MAX_VALUE }) {
+            ComputationNode root = new ComputationNode(ComputationNodeType.ADD,
+                    List.of(new ComputationNode(A), new ComputationNode(B)));
+            LinearAlgebraEngine lae = new LinearAlgebraEngine(2);
+            lae.setInlineThreshold(threshold);
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> lae.run(root));
+            assertEquals("All rows must have the same length", e.getMessage());
+        }
+    }
+
+    @Test
+    void test_RunStopsStreamingWhenABandFails() {
+        double[][] A = new double[60][60];
+        double[][] B = new double[60][60];
+        for (int i = 0; i < 60; i++) for (int j = 0; j < 60; j++) A[i][j] = B[i][j] = i + j;
+
+        // A malformed input is rejected before any row is computed
+        double[][] jagged = B.clone();
+        jagged[50] = new double[10];
+        List<double[]> written = new ArrayList<>();
+        LinearAlgebraEngine rejecting = new LinearAlgebraEngine(4);
+        rejecting.setInlineThreshold(0);
+        assertThrows(IllegalArgumentException.class, () -> rejecting.run(new ComputationNode(ComputationNodeType.ADD,
+                List.of(new ComputationNode(A), new ComputationNode(jagged))), written::add));
+        assertEquals(0, written.size());
+
+        // A band task that fails on a worker, here while writing its rows, stops the stream
+        LinearAlgebraEngine lae = new LinearAlgebraEngine(4);
+        lae.setInlineThreshold(0);
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> lae.run(
+                new ComputationNode(ComputationNodeType.ADD, List.of(new ComputationNode(A), new ComputationNode(B))),
+                row -> {
+                    if (written.size() == 20) {
+                        throw new IllegalStateException("sink failed");
+                    }
+                    written.add(row);
+                }));
+        assertEquals("sink failed", e.getMessage());
+        // No row was written after the failure
+        assertEquals(20, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(2.0 * i, written.get(i)[0], 0.0);
+        }
+    }
+
+    private static double[][] multiply(double[][] left, double[][] right) {
+        double[][] result = new double[left.length][right[0].length];
+        for (int i = 0; i < left.length; i++)
+            for (int j = 0; j < right[0].length; j++)
+                for (int k = 0; k < right.length; k++)
+                    result[i][j] += left[i][k] * right[k][j];
+        return result;
+    }
 }
@@ -0,0 +1,71 @@
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import parser.OutputWriter;
+
+public class TestOutputWriter {
+
+    @TempDir
+    Path scratch;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void test_compactMatchesPrettyOutput() throws Exception {
+        double[][] matrix = {{1, -2.5, 0.1 + 0.2}, {1e-300, 123456789.125, Math.PI}};
+        Path pretty = scratch.resolve("pretty.json");
+        Path compact = scratch.resolve("compact.json");
+        OutputWriter.write(matrix, pretty.toString());
+        OutputWriter.writeCompact(matrix, compact.toString());
+
+        String text = Files.readString(compact);
+        assertFalse(text.contains(" ") || text.contains("\n"));
+        // Same document, and every double reads back exactly
+        assertEquals(mapper.readTree(pretty.toFile()), mapper.readTree(text));
+        JsonNode rows = mapper.readTree(text).get("result");
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                assertEquals(matrix[i][j], rows.get(i).get(j).asDouble());
+            }
+        }
+    }
+
+    @Test
+    void test_gzipAndErrorOutput() throws Exception {
+        double[][] matrix = {{1, 2}, {3, 4}};
+        Path zipped = scratch.resolve("result.json.gz");
+        OutputWriter.writeCompact(matrix, zipped.toString());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(zipped))) {
+            assertEquals(mapper.readTree("{\"result\": [[1.0, 2.0], [3.0, 4.0]]}"), mapper.readTree(in));
+        }
+
+        Path error = scratch.resolve("error.json");
+        OutputWriter.writeCompact("Error parsing input: \"bad\"", error.toString());
+        assertEquals("{\"error\":\"Error parsing input: \\\"bad\\\"\"}", Files.readString(error));
+    }
+
+    @Test
+    void test_gzipOutputInParallelMembers() throws Exception {
+        // About 2 MB of text, so several members compressed side by side
+        java.util.Random random = new java.util.Random(48);
+        double[][] matrix = new double[300][300];
+        for (double[] row : matrix) for (int j = 0; j < row.length; j++) row[j] = random.nextDouble();
+        Path plain = scratch.resolve("result.json");
+        Path zipped = scratch.resolve("result.json.gz");
+        OutputWriter.writeCompact(matrix, plain.toString());
+        OutputWriter.writeCompact(matrix, zipped.toString());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(zipped))) {
+            assertEquals(Files.readString(plain), new String(in.readAllBytes()));
+        }
+    }
+}
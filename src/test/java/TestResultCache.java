@@ -0,0 +1,139 @@
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import memory.VectorOrientation;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import parser.GeneratedMatrix;
+import spl.lae.LinearAlgebraEngine;
+import spl.lae.ResultCache;
+
+public class TestResultCache {
+
+    private ComputationNode product() {
+        return new ComputationNode(ComputationNodeType.MULTIPLY, List.of(
+                new ComputationNode(new double[][] { {1, 2}, {3, 4} }),
+                new ComputationNode(new double[][] { {0, 1}, {1, 0} })));
+    }
+
+    @Test
+    void test_secondRunIsServedFromCache() {
+        ResultCache cache = new ResultCache(1 << 20);
+
+        double[][] first = new LinearAlgebraEngine(2, cache).run(product()).getMatrix();
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        double[][] second = new LinearAlgebraEngine(2, cache).run(product()).getMatrix();
+        assertEquals(1, cache.getHits());
+        assertArrayEquals(first[0], second[0], 0.0);
+        assertArrayEquals(first[1], second[1], 0.0);
+    }
+
+    @Test
+    void test_leastRecentlyUsedEntryEvicted() {
+        // Room for two 2x2 matrices
+        ResultCache cache = new ResultCache(64);
+        cache.put("a", new double[2][2]);
+        cache.put("b", new double[2][2]);
+        cache.get("a");
+        cache.put("c", new double[2][2]);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(64, cache.getCurrentBytes());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    void test_oversizedEntryOnlyPersisted(@TempDir Path dir) {
+        // Larger than the whole budget: nothing is kept in memory, the persisted copy is still read back
+        ResultCache cache = new ResultCache(16, dir);
+        cache.put("a", new double[][] { {1, 2, 3} });
+        assertEquals(0, cache.getCurrentBytes());
+        assertArrayEquals(new double[] {1, 2, 3}, cache.get("a")[0], 0.0);
+
+        ResultCache memoryOnly = new ResultCache(16);
+        memoryOnly.put("a", new double[][] { {1, 2, 3} });
+        assertEquals(0, memoryOnly.getCurrentBytes());
+        assertNull(memoryOnly.get("a"));
+    }
+
+    @Test
+    void test_persistedEntriesSurviveNewCache(@TempDir Path dir) {
+        new LinearAlgebraEngine(2, new ResultCache(1 << 20, dir)).run(product());
+
+        ResultCache reopened = new ResultCache(1 << 20, dir);
+        double[][] result = new LinearAlgebraEngine(2, reopened).run(product()).getMatrix();
+        assertEquals(1, reopened.getHits());
+        assertArrayEquals(new double[] {2, 1}, result[0], 0.0);
+        assertArrayEquals(new double[] {4, 3}, result[1], 0.0);
+    }
+
+    @Test
+    void test_entriesAreCopied() {
+        ResultCache cache = new ResultCache(1 << 20);
+        double[][] matrix = { {1, 2} };
+        cache.put("a", matrix);
+        matrix[0][0] = 5;
+        cache.get("a")[0][1] = 7;
+        assertArrayEquals(new double[] {1, 2}, cache.get("a")[0], 0.0);
+    }
+
+    @Test
+    void test_leavesHashedWithoutLoadingOrConverting() {
+        ComputationNode random = new ComputationNode(GeneratedMatrix.random(2, 2, 7, 1));
+        ComputationNode sum = new ComputationNode(ComputationNodeType.ADD, List.of(random,
+                new ComputationNode(GeneratedMatrix.identity(2, 1))));
+        String key = ResultCache.keysOf(sum).get(sum);
+        assertFalse(random.isResident());
+        // Another seed is another matrix
+        ComputationNode other = new ComputationNode(ComputationNodeType.ADD, List.of(
+                new ComputationNode(GeneratedMatrix.random(2, 2, 8, 1)), new ComputationNode(GeneratedMatrix.identity(2, 1))));
+        assertNotEquals(key, ResultCache.keysOf(other).get(other));
+
+        // A column-major leaf is hashed like the same matrix stored row-major, and stays column-major
+        ComputationNode columns = new ComputationNode(new double[][] { {0} });
+        columns.resolve(new double[][] { {1, 3}, {2, 4} }, VectorOrientation.COLUMN_MAJOR);
+        ComputationNode negated = new ComputationNode(ComputationNodeType.NEGATE, List.of(columns));
+        ComputationNode rows = new ComputationNode(ComputationNodeType.NEGATE,
+                List.of(new ComputationNode(new double[][] { {1, 2}, {3, 4} })));
+        assertEquals(ResultCache.keysOf(rows).get(rows), ResultCache.keysOf(negated).get(negated));
+        assertEquals(VectorOrientation.COLUMN_MAJOR, columns.getLayout());
+    }
+
+    @Test
+    void test_persistFailuresAreCounted(@TempDir Path dir) throws Exception {
+        Path gone = dir.resolve("cache");
+        ResultCache cache = new ResultCache(1 << 20, gone);
+        java.nio.file.Files.delete(gone);
+        cache.put("a", new double[][] { {1} });
+        assertEquals(1, cache.getPersistFailures());
+        assertArrayEquals(new double[] {1}, cache.get("a")[0], 0.0);
+    }
+
+    @Test
+    void test_lazyLeavesHitWithoutBeingParsed(@TempDir Path dir) throws Exception {
+        Path input = dir.resolve("input.json");
+        java.nio.file.Files.writeString(input, "{\"operator\": \"*\", \"operands\": [[[1, 2], [3, 4]], [[0, 1], [1, 0]]]}");
+        ResultCache cache = new ResultCache(1 << 20);
+        for (int run = 0; run < 2; run++) {
+            parser.InputParser inputParser = new parser.InputParser();
+            inputParser.setLazyLeaves(true);
+            ComputationNode root = inputParser.parse(input.toString());
+            ComputationNode leaf = root.getChildren().get(0);
+            double[][] result = new LinearAlgebraEngine(2, cache).run(root).getMatrix();
+            assertArrayEquals(new double[] {2, 1}, result[0], 0.0);
+            // The second run is a hit, found from the text of the literals
+            assertEquals(run == 0, leaf.isResident());
+        }
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -1,6 +1,7 @@
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -205,4 +206,16 @@ public class TestSharedVector {
 
         assertEquals(0.0, result, 1e-9);
     }
+
+    @Test
+    public void testRangedDotProductChecksOrientation() {
+        SharedVector row = new SharedVector(new double[]{1, 2, 3}, VectorOrientation.ROW_MAJOR);
+        SharedVector col = new SharedVector(new double[]{4, 5, 6}, VectorOrientation.COLUMN_MAJOR);
+        SharedVector otherRow = new SharedVector(new double[]{4, 5, 6}, VectorOrientation.ROW_MAJOR);
+
+        // 2*5 + 3*6 = 28
+        assertEquals(28.0, row.dot(col, 1, 3), 1e-9);
+        assertThrows(IllegalArgumentException.class, () -> row.dot(otherRow, 0, 3));
+        assertThrows(IllegalArgumentException.class, () -> col.dot(row, 0, 3));
+    }
 }
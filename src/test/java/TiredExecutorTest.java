@@ -1,3 +1,4 @@
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -6,6 +7,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -72,6 +74,22 @@ public class TiredExecutorTest {
                 "All submitted tasks should have been executed");
     }
 
+    @Test
+    void testSubmitAllRethrowsTaskFailure() {
+        AtomicInteger counter = new AtomicInteger(0);
+        List<Runnable> tasks = List.of(
+                counter::incrementAndGet,
+                () -> { throw new IllegalStateException("task failed"); },
+                counter::incrementAndGet);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> executor.submitAll(tasks));
+        assertEquals("task failed", e.getMessage());
+        // The other tasks still ran, and the workers can take new tasks
+        assertEquals(2, counter.get());
+        executor.submitAll(List.of(counter::incrementAndGet));
+        assertEquals(3, counter.get());
+    }
+
     // ---------------------------
     // 3. shutdown
     // ---------------------------